@@ -0,0 +1,166 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import name.prokop.bart.fps.datamodel.Invoice;
+import name.prokop.bart.fps.datamodel.Slip;
+
+/**
+ * Non-blocking companion of FiscalPrinter. Every physical printer (port) has
+ * one AsyncFiscalPrinter with its own single-threaded executor, so jobs for a
+ * device are executed one after another in submission order, while different
+ * devices work in parallel.
+ *
+ * Returned futures always complete normally - a failed job yields a
+ * PrintResult with isSuccess() == false.
+ *
+ * @author Bartłomiej Prokop
+ */
+public class AsyncFiscalPrinter implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(AsyncFiscalPrinter.class.getName());
+    private static final Map<String, AsyncFiscalPrinter> printers = new HashMap<>();
+    private final String port;
+    private final FiscalPrinter fiscalPrinter;
+    private final ExecutorService executor;
+
+    /**
+     * Creates an asynchronous wrapper with its own executor. Prefer
+     * getAsyncFiscalPrinter(), which guarantees one executor per port.
+     *
+     * @param fiscalPrinter printer driver
+     * @param port port or transport URI, used for thread name
+     */
+    public AsyncFiscalPrinter(FiscalPrinter fiscalPrinter, String port) {
+        this.fiscalPrinter = fiscalPrinter;
+        this.port = port;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "FiscalPrinter " + port);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Returns the asynchronous printer for given port, creating it when
+     * needed.
+     *
+     * @param type printer type
+     * @param port port name or transport URI
+     * @return asynchronous printer
+     * @throws FiscalPrinterException when driver cannot be created
+     */
+    public static AsyncFiscalPrinter getAsyncFiscalPrinter(FiscalPrinter.Type type, String port) throws FiscalPrinterException {
+        return getAsyncFiscalPrinter(type.name(), port);
+    }
+
+    /**
+     * Returns the asynchronous printer for given port, creating it when
+     * needed. The driver comes from FiscalPrinterRegistry, so it is the
+     * same object other users of the port print through.
+     *
+     * @param typeName printer type name, see FiscalPrinterRegistry
+     * @param port port name or transport URI
+     * @return asynchronous printer
+     * @throws FiscalPrinterException when driver cannot be created or the
+     * port is already used by a printer of another type
+     */
+    public static AsyncFiscalPrinter getAsyncFiscalPrinter(String typeName, String port) throws FiscalPrinterException {
+        FiscalPrinter fiscalPrinter = FiscalPrinterRegistry.getFiscalPrinter(typeName, port);
+        synchronized (printers) {
+            AsyncFiscalPrinter printer = printers.get(port);
+            if (printer == null) {
+                printer = new AsyncFiscalPrinter(fiscalPrinter, port);
+                printers.put(port, printer);
+            } else if (printer.fiscalPrinter != fiscalPrinter) {
+                throw new FiscalPrinterException("Port " + port + " obsługuje już drukarka innego typu");
+            }
+            return printer;
+        }
+    }
+
+    public FiscalPrinter getFiscalPrinter() {
+        return fiscalPrinter;
+    }
+
+    public String getPort() {
+        return port;
+    }
+
+    public CompletableFuture<PrintResult> printAsync(Slip slip) {
+        return submit(slip.getReference(), () -> fiscalPrinter.print(slip));
+    }
+
+    public CompletableFuture<PrintResult> printAsync(Invoice invoice) {
+        return submit(null, () -> fiscalPrinter.print(invoice));
+    }
+
+    public CompletableFuture<PrintResult> openDrawerAsync() {
+        return submit(null, fiscalPrinter::openDrawer);
+    }
+
+    public CompletableFuture<PrintResult> printDailyReportAsync() {
+        return submit(null, fiscalPrinter::printDailyReport);
+    }
+
+    /**
+     * Stops accepting jobs; jobs already submitted are completed.
+     */
+    @Override
+    public void close() {
+        synchronized (printers) {
+            if (printers.get(port) == this) {
+                printers.remove(port);
+            }
+        }
+        executor.shutdown();
+    }
+
+    private CompletableFuture<PrintResult> submit(String reference, Job job) {
+        CompletableFuture<PrintResult> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> future.complete(run(reference, job)));
+        } catch (RejectedExecutionException e) {
+            future.complete(PrintResult.failure(reference, System.currentTimeMillis(), new FiscalPrinterException("Drukarka " + port + " zamknięta")));
+        }
+        return future;
+    }
+
+    private PrintResult run(String reference, Job job) {
+        long start = System.currentTimeMillis();
+        try {
+            job.run();
+            return PrintResult.success(reference, start);
+        } catch (Throwable e) {
+            // również LinkageError z biblioteki portu - przyszły wynik musi zostać zakończony
+            logger.log(Level.WARNING, "Błąd drukarki " + port, e);
+            return PrintResult.failure(reference, start, e);
+        }
+    }
+
+    private interface Job {
+
+        void run() throws FiscalPrinterException;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Provides the drivers bundled with the library - FiscalPrinter.Type.
+ *
+ * @author Bartłomiej Prokop
+ */
+public class BuiltInPrinterProvider implements FiscalPrinterProvider {
+
+    @Override
+    public Collection<String> getTypeNames() {
+        List<String> names = new ArrayList<>();
+        for (FiscalPrinter.Type type : FiscalPrinter.Type.values()) {
+            names.add(type.name());
+        }
+        return names;
+    }
+
+    @Override
+    public FiscalPrinter getFiscalPrinter(String typeName, String comPort) throws FiscalPrinterException {
+        return FiscalPrinter.Type.valueOf(typeName).getFiscalPrinter(comPort);
+    }
+}
@@ -15,16 +15,15 @@
  */
 package name.prokop.bart.fps;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
 import java.net.URL;
-import javax.net.ssl.HttpsURLConnection;
-import name.prokop.bart.fps.datamodel.SaleLine;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import name.prokop.bart.fps.datamodel.Slip;
-import name.prokop.bart.fps.datamodel.SlipPayment;
-import name.prokop.bart.fps.datamodel.VATRate;
-import org.json.JSONArray;
-import org.json.JSONObject;
+import name.prokop.bart.fps.datamodel.SlipStream;
 
 /**
  *
@@ -32,86 +31,207 @@ import org.json.JSONObject;
  */
 public class CloudPrint {
 
+    static final String QUEUE_URL = "https://fiscal-printer.appspot.com/v1/queue/";
+    /**
+     * Number of slips fetched ahead of the printer; 0 streams every slip
+     * straight from the connection into the printer.
+     */
+    public static final String PREFETCH_PROPERTY = "name.prokop.bart.fps.prefetch";
+    /**
+     * Spool directory. When set, fetched slips are stored there first and
+     * printed from there, together with slips put there by local producers;
+     * print outcomes wait in its "status" subdirectory until the server
+     * accepts them.
+     */
+    public static final String SPOOL_PROPERTY = "name.prokop.bart.fps.spool";
+
     public static void main(String... args) throws Exception {
 //        args = new String[]{"Console", "COM1", "898288f0-bf79-4827-9d11-6b0b492e354c"};
-        if (args.length != 3) {
+        if (args.length == 1) {
+            FleetManager.main(args);
+            return;
+        }
+        if (args.length != 3 && args.length != 4) {
             printHelp();
             return;
         }
 
-        final FiscalPrinter.Type type = FiscalPrinter.Type.valueOf(args[0]);
+        final String type = args[0];
         final String comPort = args[1];
         final String printerId = args[2];
 
         System.out.println("Printer: " + type + ", port: " + comPort + ", id: " + printerId + ".");
-        final URL url = new URL("https://fiscal-printer.appspot.com/v1/queue/" + printerId);
-        System.out.println("Server URL: " + url);
+        final String queueUrl = args.length > 3 ? args[3] : QUEUE_URL;
+        final CloudQueue queue = new CloudQueue(queueUrl + printerId, CloudQueue.DEFAULT_WAIT, 500);
+        System.out.println("Server URL: " + queue.getUrl());
+
+        // jeden sterownik na cały czas pracy - z zapamiętanymi stawkami VAT i otwartą sesją portu
+        final FiscalPrinter fiscalPrinter = FiscalPrinterRegistry.getFiscalPrinter(type, comPort);
+        final String statusUrl = queueUrl + printerId + "/status";
+        final String spoolDir = System.getProperty(SPOOL_PROPERTY);
+        if (spoolDir != null) {
+            SlipSpool spool = new SlipSpool(Paths.get(spoolDir));
+            try (StatusReporter reporter = new StatusReporter(statusUrl, Paths.get(spoolDir, "status"))) {
+                printFromSpool(queue, spool, fiscalPrinter, reporter);
+            }
+            return;
+        }
+        // wyniki wydruku wracają do serwera w paczkach, w osobnym wątku
+        final StatusReporter reporter = new StatusReporter(statusUrl);
+        final int prefetch = Integer.getInteger(PREFETCH_PROPERTY, SlipPrefetcher.DEFAULT_DEPTH);
+        if (prefetch > 0) {
+            // kolejne paragony są pobierane w czasie drukowania bieżącego
+            try (SlipPrefetcher prefetcher = new SlipPrefetcher(queue, prefetch)) {
+                prefetcher.start();
+                while (true) {
+                    Slip slip;
+                    try {
+                        slip = prefetcher.take();
+                    } catch (UnreadableSlipException e) {
+                        // paragon zdjęty z kolejki - serwer musi się dowiedzieć, że nie został wydrukowany
+                        System.err.println("Error: " + e);
+                        long now = System.currentTimeMillis();
+                        reporter.report(PrintResult.failure(e.getReference(), now, e), now);
+                        continue;
+                    }
+                    long start = System.currentTimeMillis();
+                    try {
+                        fiscalPrinter.print(slip);
+                        reporter.report(PrintResult.success(slip.getReference(), start), slip.getCreated().getTime());
+                    } catch (Exception e) {
+                        System.err.println("Error: " + e);
+                        reporter.report(PrintResult.failure(slip.getReference(), start, e), slip.getCreated().getTime());
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                reporter.close();
+            }
+        }
+        // bez wyprzedzenia - pozycje trafiają do drukarki w miarę ich odbierania
+        try {
+            while (true) {
+                try (SlipStream slip = queue.take()) {
+                    long start = System.currentTimeMillis();
+                    try {
+                        fiscalPrinter.print(slip);
+                        reporter.report(PrintResult.success(slip.getReference(), start), start);
+                    } catch (Exception e) {
+                        System.err.println("Error: " + e);
+                        reporter.report(PrintResult.failure(slip.getReference(), start, e), start);
+                    }
+                } catch (UnreadableSlipException e) {
+                    // paragon zdjęty z kolejki - serwer musi się dowiedzieć, że nie został wydrukowany
+                    System.err.println("Error: " + e);
+                    long now = System.currentTimeMillis();
+                    reporter.report(PrintResult.failure(e.getReference(), now, e), now);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    System.err.println("Error: " + e);
+                }
+            }
+        } finally {
+            reporter.close();
+        }
+    }
 
-        final char[] X = new char[]{'-', '\\', '|', '/'};
-        int counter = 0;
-        while (true) {
-            System.out.print(X[counter++ % X.length]);
-            Thread.sleep(500);
+    /**
+     * Store-and-forward: one thread moves slips from the cloud queue to the
+     * spool, the printer takes them from the spool. A dead uplink only stops
+     * the first one - local slips keep printing, and the backlog drains at
+     * printer speed once the queue is reachable again.
+     */
+    private static void printFromSpool(final CloudQueue queue, final SlipSpool spool, FiscalPrinter fiscalPrinter, StatusReporter reporter) {
+        for (Path file : spool.getInterrupted()) {
+            String reference = null;
+            try (SlipStream slip = new SlipJsonReader(Files.newInputStream(file))) {
+                reference = slip.getReference();
+            } catch (IOException e) {
+                // zgłoszenie bez referencji
+            }
+            long modified = file.toFile().lastModified();
+            reporter.report(PrintResult.failure(reference, modified, new FiscalPrinterException("Wydruk przerwany - stan nieznany, plik " + file)), modified);
+        }
+        Thread fetcher = new Thread(() -> {
             try {
-                Slip slip = retrieveSlip(url);
-                System.out.print('\b');
-                if (slip != null) {
-                    FiscalPrinter fiscalPrinter = type.getFiscalPrinter(comPort);
+                while (true) {
+                    try (InputStream body = queue.takeBody()) {
+                        spool.put(body);
+                    } catch (IOException e) {
+                        System.err.println("Error: " + e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // koniec pracy
+            }
+        }, "CloudPrint fetcher");
+        fetcher.setDaemon(true);
+        fetcher.start();
+
+        long lastMetrics = 0;
+        try {
+            while (true) {
+                SlipSpool.Entry entry = spool.take();
+                long start = System.currentTimeMillis();
+                String reference = null;
+                PrintResult result;
+                try (SlipStream slip = entry.open()) {
+                    reference = slip.getReference();
                     fiscalPrinter.print(slip);
+                    result = PrintResult.success(reference, start);
+                } catch (Exception e) {
+                    System.err.println("Error: " + e);
+                    result = PrintResult.failure(reference, start, e);
+                }
+                try {
+                    entry.done();
+                } catch (IOException e) {
+                    System.err.println("Error: " + e);
+                }
+                reporter.report(result, entry.getReceived());
+                if (System.currentTimeMillis() - lastMetrics > 60 * 1000) {
+                    lastMetrics = System.currentTimeMillis();
+                    System.out.println(spool + ", statuses pending: " + reporter.getPendingCount());
                 }
-            } catch (Exception e) {
-                System.err.println("Error: " + e);
             }
+        } catch (InterruptedException e) {
+            fetcher.interrupt();
         }
     }
 
-    private static Slip retrieveSlip(URL url) throws Exception {
-        final HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-        if (conn.getResponseCode() == 404) {
+    /**
+     * Opens the next queued slip. The slip is read as the printer driver
+     * consumes its lines - the connection stays open until the stream is
+     * closed. Connect and read timeouts keep a hung server from holding the
+     * calling thread, and an empty answer is read to the end so that the
+     * connection is reused.
+     *
+     * @param url queue URL
+     * @return slip stream or null when the queue is empty
+     * @throws IOException on connection or protocol error
+     */
+    static SlipStream openSlip(URL url) throws IOException {
+        final HttpURLConnection conn = CloudQueue.request(url, 0);
+        if (conn == null) {
             return null;
         }
+        return new SlipJsonReader(conn.getInputStream());
+    }
 
-        InputStream is = conn.getInputStream();
-        InputStreamReader isr = new InputStreamReader(is);
-        int ch;
-        StringBuilder sb = new StringBuilder();
-        while ((ch = isr.read()) != -1) {
-            sb.append((char) ch);
+    static Slip retrieveSlip(URL url) throws Exception {
+        try (SlipStream slip = openSlip(url)) {
+            return slip != null ? slip.toSlip() : null;
         }
-
-        return parseSlip(sb.toString());
     }
 
     private static void printHelp() {
-        System.out.println("Usage: PrinterType COMx printer-qeueue-uuid");
+        System.out.println("Usage: PrinterType COMx printer-qeueue-uuid [queue-url]");
+        System.out.println("       fleet-config.json (many printers, see FleetManager)");
         System.out.println("Avaiable PrinterTypes:");
-        for (FiscalPrinter.Type t : FiscalPrinter.Type.values()) {
-            System.out.print(" " + t.name());
-        }
-    }
-
-    private static Slip parseSlip(String string) {
-        final JSONObject jsonReceipt = new JSONObject(string);
-
-        Slip slip = new Slip();
-        slip.setReference(jsonReceipt.optString("reference", null));
-        slip.setCashierName(jsonReceipt.optString("cashier", null));
-        slip.setCashbox(jsonReceipt.optString("register", null));
-
-        final JSONArray jsonItems = jsonReceipt.optJSONArray("items");
-        for (int i = 0; i < jsonItems.length(); i++) {
-            final JSONObject jsonItem = jsonItems.getJSONObject(i);
-            SaleLine sl = new SaleLine();
-            sl.setName(jsonItem.optString("description", null));
-            sl.setAmount(jsonItem.optDouble("amount", 1.0));
-            sl.setPrice(jsonItem.optDouble("unitPrice", 0.01));
-            sl.setTaxRate(VATRate.valueOf(jsonItem.optString("vatRate", "VAT23")));
-            slip.addLine(sl);
+        for (String t : FiscalPrinterRegistry.getTypeNames()) {
+            System.out.print(" " + t);
         }
-
-        slip.addPayment(SlipPayment.PaymentType.Cash, slip.getTotal(), null);
-
-        return slip;
     }
-
 }
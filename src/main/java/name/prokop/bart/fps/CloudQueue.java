@@ -0,0 +1,230 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import name.prokop.bart.fps.datamodel.SlipStream;
+
+/**
+ * Client of a single cloud queue using HTTP long polling.
+ *
+ * Every request carries a "wait" parameter. The server holds the request
+ * until a slip is queued or the wait time elapses (404). A slip is thus
+ * delivered as soon as it is queued, and an idle printer sends one request
+ * per wait period instead of two per second. Response bodies are always read
+ * to the end and closed, so HttpURLConnection keeps reusing the same
+ * keep-alive connection.
+ *
+ * A server that ignores "wait" answers 404 at once. Empty answers are then
+ * spaced by the poll interval, as the plain polling used to be.
+ *
+ * Errors are retried with exponential back-off. The delay starts at the
+ * poll interval, doubles up to MAX_BACKOFF and gets random jitter, so that
+ * stores do not reconnect in lockstep after an outage. The first
+ * successful answer resets it.
+ *
+ * @author Bartłomiej Prokop
+ */
+public class CloudQueue {
+
+    private static final Logger logger = Logger.getLogger(CloudQueue.class.getName());
+    public static final int DEFAULT_WAIT = 30;
+    public static final long MAX_BACKOFF = 60 * 1000;
+    private static final int CONNECT_TIMEOUT = 10 * 1000;
+    private final URL url;
+    private final int wait;
+    private final long pollInterval;
+    private long backoff;
+
+    /**
+     * @param queueUrl queue URL, e.g. CloudPrint.QUEUE_URL + printerId
+     * @param wait how long the server may hold a request, in seconds; 0
+     * disables long polling
+     * @param pollInterval minimal time between empty answers and initial
+     * back-off, in milliseconds
+     * @throws MalformedURLException when queueUrl is invalid
+     */
+    public CloudQueue(String queueUrl, int wait, long pollInterval) throws MalformedURLException {
+        this.url = new URL(queueUrl + (queueUrl.indexOf('?') < 0 ? '?' : '&') + "wait=" + wait);
+        this.wait = wait;
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * Waits for the next slip, retrying on connection errors.
+     *
+     * @return next slip; the caller closes it, which completes the request
+     * @throws UnreadableSlipException when the slip was removed from the
+     * queue but could not be decoded - the caller reports it as failed
+     * @throws InterruptedException when the thread is interrupted
+     */
+    public SlipStream take() throws UnreadableSlipException, InterruptedException {
+        InputStream body = takeBody();
+        try {
+            return new SlipJsonReader(body);
+        } catch (IOException | RuntimeException e) {
+            // paragon jest już zdjęty z kolejki
+            close(body);
+            throw new UnreadableSlipException(null, "Nieczytelny paragon z kolejki " + url, e);
+        }
+    }
+
+    /**
+     * Waits for the next slip, retrying on errors, and returns it undecoded
+     * - e.g. to store it in a spool.
+     *
+     * @return JSON document of the next slip; the caller closes it, which
+     * completes the request
+     * @throws InterruptedException when the thread is interrupted
+     */
+    public InputStream takeBody() throws InterruptedException {
+        while (true) {
+            try {
+                InputStream body = pollBody();
+                backoff = 0;
+                if (body != null) {
+                    return body;
+                }
+            } catch (IOException e) {
+                backoff = nextBackoff(backoff, pollInterval);
+                long delay = jitter(backoff);
+                logger.log(Level.WARNING, "Błąd kolejki " + url + ", ponowienie za " + delay + " ms: " + e);
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * Sends one request.
+     *
+     * @return next slip or null when none was queued within the wait time
+     * @throws IOException on connection or protocol error
+     * @throws InterruptedException when interrupted while pacing empty
+     * answers
+     */
+    public SlipStream poll() throws IOException, InterruptedException {
+        InputStream body = pollBody();
+        return body != null ? new SlipJsonReader(body) : null;
+    }
+
+    /**
+     * Sends one request.
+     *
+     * @return JSON document of the next slip or null when none was queued
+     * within the wait time
+     * @throws IOException on connection or protocol error
+     * @throws InterruptedException when interrupted while pacing empty
+     * answers
+     */
+    public InputStream pollBody() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        HttpURLConnection conn = request(url, wait);
+        if (conn != null) {
+            return conn.getInputStream();
+        }
+        pace(start, pollInterval);
+        return null;
+    }
+
+    /**
+     * Sends a long-poll request.
+     *
+     * @param url request URL
+     * @param wait wait parameter of the request, in seconds
+     * @return connection with a slip (HTTP 200) or null when there was none
+     * @throws IOException on connection or protocol error
+     */
+    static HttpURLConnection request(URL url, int wait) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout((int) TimeUnit.SECONDS.toMillis(wait) + CONNECT_TIMEOUT);
+        int code = conn.getResponseCode();
+        if (code == HttpURLConnection.HTTP_OK) {
+            return conn;
+        }
+        discard(conn);
+        if (code != HttpURLConnection.HTTP_NOT_FOUND && code != HttpURLConnection.HTTP_NO_CONTENT) {
+            throw new IOException("HTTP " + code + " " + conn.getResponseMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Pads an empty answer that came back sooner than pollInterval.
+     *
+     * @param start request start, System.nanoTime()
+     * @param pollInterval minimal time between empty answers, in
+     * milliseconds
+     */
+    static void pace(long start, long pollInterval) throws InterruptedException {
+        long left = pollInterval - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (left > 0) {
+            Thread.sleep(left);
+        }
+    }
+
+    /**
+     * @param backoff previous delay, 0 after a success
+     * @param pollInterval initial delay
+     * @return next back-off delay - doubled, at most MAX_BACKOFF
+     */
+    static long nextBackoff(long backoff, long pollInterval) {
+        return backoff == 0 ? pollInterval : Math.min(backoff * 2, MAX_BACKOFF);
+    }
+
+    /**
+     * @param backoff back-off delay
+     * @return the delay with up to 25% random jitter added
+     */
+    static long jitter(long backoff) {
+        return backoff + ThreadLocalRandom.current().nextLong(backoff / 4 + 1);
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    /**
+     * Reads the body of an unused answer, so the connection goes back to the
+     * keep-alive cache.
+     */
+    private static void discard(HttpURLConnection conn) {
+        InputStream error = conn.getErrorStream();
+        try (InputStream in = error != null ? error : conn.getInputStream()) {
+            byte[] buf = new byte[512];
+            while (in.read(buf) >= 0) {
+            }
+        } catch (IOException e) {
+            conn.disconnect();
+        }
+    }
+
+    private static void close(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            // połączenie i tak nie nadaje się do ponownego użycia
+        }
+    }
+}
@@ -15,14 +15,27 @@
  */
 package name.prokop.bart.fps;
 
-import name.prokop.bart.fps.datamodel.SaleLine;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import name.prokop.bart.fps.datamodel.Slip;
-import name.prokop.bart.fps.datamodel.SlipPayment;
-import name.prokop.bart.fps.datamodel.VATRate;
-import org.json.JSONArray;
 import org.json.JSONObject;
 
 /**
+ * Prints one slip given on the command line. When a PrintDaemon is running,
+ * the slip is handed over to it, so the port is not opened again for every
+ * slip; otherwise it is printed directly.
+ *
+ * With "-batch" slips are read one per line (NDJSON) from a file or from
+ * standard input, as they arrive, and printed through one driver. Each line
+ * gets one outcome line on standard output (see SlipBatch); the exit code is
+ * 1 when any slip was not printed.
  *
  * @author Bartłomiej Prokop
  */
@@ -30,52 +43,64 @@ public class CommandLinePrint {
 
     public static void main(String... args) throws Exception {
 //        args = new String[]{"Console", "COM1", "{\"reference\":\"R-k 0123456789\",\"cashier\":\"Bartek Prokop\",\"register\":\"XX99\",\"items\":[{\"description\":\"Test drukarki\",\"amount\":1,\"unitPrice\":0.01,\"vatRate\":\"VAT23\"}]}"};
+        if (args.length > 0 && "-daemon".equals(args[0])) {
+            PrintDaemon.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if ((args.length == 3 || args.length == 4) && "-batch".equals(args[2])) {
+            System.exit(printBatch(args[0], args[1], args.length > 3 ? args[3] : "-") ? 0 : 1);
+        }
         if (args.length != 3) {
             printHelp();
             return;
         }
 
-        final FiscalPrinter.Type type = FiscalPrinter.Type.valueOf(args[0]);
+        final String type = args[0];
         final String comPort = args[1];
 
         System.out.println("Printer: " + type + ", port: " + comPort + ".");
 
-        final Slip slip = parseSlip(args[2]);
+        try {
+            JSONObject result = PrintDaemon.print(PrintDaemon.getDefaultPort(), type, comPort, args[2]);
+            System.out.println("Daemon: " + result);
+            if (!"printed".equals(result.optString("status"))) {
+                throw new FiscalPrinterException(result.optString("error", null), result.optString("errorCode", null));
+            }
+            return;
+        } catch (ConnectException e) {
+            // demon nie działa - drukujemy sami
+        }
+
+        final Slip slip;
+        try (SlipJsonReader reader = new SlipJsonReader(new StringReader(args[2]))) {
+            slip = reader.toSlip();
+        }
 
-        FiscalPrinter fiscalPrinter = type.getFiscalPrinter(comPort);
+        FiscalPrinter fiscalPrinter = FiscalPrinterRegistry.getFiscalPrinter(type, comPort);
         fiscalPrinter.print(slip);
     }
 
-    private static void printHelp() {
-        System.out.println("Usage: PrinterType COMx JSON");
-        System.out.println("Avaiable PrinterTypes:");
-        for (FiscalPrinter.Type t : FiscalPrinter.Type.values()) {
-            System.out.print(" " + t.name());
+    private static boolean printBatch(String type, String comPort, String fileName) throws IOException, FiscalPrinterException {
+        System.err.println("Printer: " + type + ", port: " + comPort + ", batch: " + fileName + ".");
+        FiscalPrinter fiscalPrinter = FiscalPrinterRegistry.getFiscalPrinter(type, comPort);
+        try (BufferedReader reader = "-".equals(fileName)
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            return SlipBatch.printLines(fiscalPrinter, reader, result -> {
+                System.out.println(result);
+                System.out.flush();
+            });
         }
     }
 
-    private static Slip parseSlip(String string) {
-        final JSONObject jsonReceipt = new JSONObject(string);
-
-        Slip slip = new Slip();
-        slip.setReference(jsonReceipt.optString("reference", null));
-        slip.setCashierName(jsonReceipt.optString("cashier", null));
-        slip.setCashbox(jsonReceipt.optString("register", null));
-
-        final JSONArray jsonItems = jsonReceipt.optJSONArray("items");
-        for (int i = 0; i < jsonItems.length(); i++) {
-            final JSONObject jsonItem = jsonItems.getJSONObject(i);
-            SaleLine sl = new SaleLine();
-            sl.setName(jsonItem.optString("description", null));
-            sl.setAmount(jsonItem.optDouble("amount", 1.0));
-            sl.setPrice(jsonItem.optDouble("unitPrice", 0.01));
-            sl.setTaxRate(VATRate.valueOf(jsonItem.optString("vatRate", "VAT23")));
-            slip.addLine(sl);
+    private static void printHelp() {
+        System.out.println("Usage: PrinterType COMx JSON");
+        System.out.println("       PrinterType COMx -batch [NDJSON file, - for stdin]");
+        System.out.println("       -daemon [port]");
+        System.out.println("Avaiable PrinterTypes:");
+        for (String t : FiscalPrinterRegistry.getTypeNames()) {
+            System.out.print(" " + t);
         }
-
-        slip.addPayment(SlipPayment.PaymentType.Cash, slip.getTotal(), null);
-
-        return slip;
     }
 
 }
@@ -12,20 +12,15 @@
  */
 package name.prokop.bart.fps;
 
-import java.lang.reflect.Method;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
 import name.prokop.bart.fps.datamodel.Invoice;
 import name.prokop.bart.fps.datamodel.Slip;
-import name.prokop.bart.fps.drivers.ConsoleDump;
-import name.prokop.bart.fps.drivers.DFEmul;
-import name.prokop.bart.fps.drivers.ElzabMera;
-import name.prokop.bart.fps.drivers.ElzabOmega2;
-import name.prokop.bart.fps.drivers.InnovaProfit451;
-import name.prokop.bart.fps.drivers.OptimusVivo;
-import name.prokop.bart.fps.drivers.Posnet101;
-import name.prokop.bart.fps.drivers.Thermal101;
-import name.prokop.bart.fps.drivers.Thermal203;
-import name.prokop.bart.fps.drivers.Thermal301;
-import name.prokop.bart.fps.drivers.ThermalOld;
+import name.prokop.bart.fps.datamodel.SlipStream;
 
 /**
  *
@@ -35,35 +30,64 @@ public interface FiscalPrinter {
 
     public static enum Type {
 
-        Console(ConsoleDump.class, "Console"),
-        DFEmul(DFEmul.class, "Emulator"),
-        ElzabMera(ElzabMera.class, "Elzab Mera"),
-        ElzabOmega2(ElzabOmega2.class, "Elzab Omega 2"),
-        InnovaProfit451(InnovaProfit451.class, "Innova Profit 4.51"),
-        OptimusVivo(OptimusVivo.class, "Optimus VIVO"),
-        Posnet101(Posnet101.class, "Posnet nowy protokół"),
-        Thermal101(Thermal101.class, "Posnet Thermal 1.01"),
-        Thermal203(Thermal203.class, "Posnet Thermal 2.03"),
-        Thermal301(Thermal301.class, "Posnet Thermal 3.01"),
-        ThermalOld(ThermalOld.class, "Thermal stara homologacja");
-
-        private final Class<?> driverClass;
+        Console("ConsoleDump", "Console"),
+        DFEmul("DFEmul", "Emulator"),
+        ElzabMera("ElzabMera", "Elzab Mera"),
+        ElzabOmega2("ElzabOmega2", "Elzab Omega 2"),
+        InnovaProfit451("InnovaProfit451", "Innova Profit 4.51"),
+        OptimusVivo("OptimusVivo", "Optimus VIVO"),
+        Posnet101("Posnet101", "Posnet nowy protokół"),
+        Thermal101("Thermal101", "Posnet Thermal 1.01"),
+        Thermal203("Thermal203", "Posnet Thermal 2.03"),
+        Thermal301("Thermal301", "Posnet Thermal 3.01"),
+        ThermalOld("ThermalOld", "Thermal stara homologacja");
+
+        /**
+         * Driver class name - the class is loaded when the first driver of
+         * this type is created, not with the enum.
+         */
+        private final String driverClassName;
         private final String friendlyName;
+        private volatile MethodHandle factory;
 
-        private Type(Class<?> driverClass, String friendlyName) {
-            this.driverClass = driverClass;
+        private Type(String driverClass, String friendlyName) {
+            this.driverClassName = "name.prokop.bart.fps.drivers." + driverClass;
             this.friendlyName = friendlyName;
         }
 
+        /**
+         * Creates printer driver.
+         *
+         * @param comPort serial port name (COM1, /dev/ttyS0) or transport URI:
+         * serial:/dev/ttyS0?baud=9600, tcp://10.0.0.5:6666, loop:name - see
+         * name.prokop.bart.fps.comm.Transports
+         * @return printer driver
+         * @throws FiscalPrinterException when driver cannot be created
+         */
         public FiscalPrinter getFiscalPrinter(String comPort) throws FiscalPrinterException {
             try {
-                Method method = this.driverClass.getMethod("getFiscalPrinter", String.class);
-                return (FiscalPrinter) method.invoke(null, comPort);
-            } catch (Exception e) {
+                return (FiscalPrinter) getFactory().invokeExact(comPort);
+            } catch (FiscalPrinterException e) {
+                throw e;
+            } catch (Throwable e) {
                 throw new FiscalPrinterException(e);
             }
         }
 
+        /**
+         * @return handle of the static getFiscalPrinter(String) method of the
+         * driver, resolved once
+         */
+        private MethodHandle getFactory() throws ReflectiveOperationException {
+            MethodHandle mh = factory;
+            if (mh == null) {
+                Class<?> driverClass = Class.forName(driverClassName);
+                mh = MethodHandles.publicLookup().findStatic(driverClass, "getFiscalPrinter", MethodType.methodType(FiscalPrinter.class, String.class));
+                factory = mh;
+            }
+            return mh;
+        }
+
         @Override
         public String toString() {
             return friendlyName;
@@ -78,8 +102,63 @@ public interface FiscalPrinter {
      */
     public void print(Slip slip) throws FiscalPrinterException;
 
+    /**
+     * Prints slips one after another. A failed slip does not stop the batch -
+     * its failure is reported in the result and the next slip is printed.
+     * Drivers keep the printer connection open for the whole batch and skip
+     * the per-slip setup where the protocol allows it.
+     *
+     * @param slips slips to print
+     * @return result of every slip, in order
+     */
+    public default List<PrintResult> print(Iterable<Slip> slips) {
+        List<PrintResult> results = new ArrayList<>();
+        for (Slip slip : slips) {
+            long start = System.currentTimeMillis();
+            try {
+                print(slip);
+                results.add(PrintResult.success(slip.getReference(), start));
+            } catch (Exception e) {
+                results.add(PrintResult.failure(slip.getReference(), start, e));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Prints a slip read line by line from a stream. Drivers that support it
+     * send every line to the printer as soon as it is read, so the slip does
+     * not have to be received in full first. The default implementation
+     * reads the whole slip and prints it with print(Slip). The stream is not
+     * closed.
+     *
+     * @param slip slip source
+     * @throws FiscalPrinterException when unable to read or print the slip
+     */
+    public default void print(SlipStream slip) throws FiscalPrinterException {
+        Slip s;
+        try {
+            s = slip.toSlip();
+        } catch (IOException e) {
+            throw new FiscalPrinterException(e);
+        }
+        print(s);
+    }
+
     public void print(Invoice invoice) throws FiscalPrinterException;
 
+    /**
+     * Checks the printer status flags, without printing, to tell whether a
+     * slip can be printed now - the printer answers, is on line and has
+     * paper. Drivers that cannot query the status return true.
+     *
+     * @return true when the printer can take a slip
+     * @throws FiscalPrinterException when the printer cannot be reached
+     */
+    public default boolean isReady() throws FiscalPrinterException {
+        return true;
+    }
+
     /**
      * Opens money drawer
      *
@@ -22,6 +22,8 @@ import java.io.IOException;
  */
 public class FiscalPrinterException extends IOException {
 
+    private final String errorCode;
+
     /**
      * Constructs an instance of
      * <code>NewException</code> with the specified detail message.
@@ -29,10 +31,34 @@ public class FiscalPrinterException extends IOException {
      * @param msg the detail message.
      */
     public FiscalPrinterException(String msg) {
+        this(msg, null);
+    }
+
+    /**
+     * @param msg the detail message.
+     * @param errorCode error number reported by the printer
+     */
+    public FiscalPrinterException(String msg, String errorCode) {
         super(msg);
+        this.errorCode = errorCode;
     }
 
     public FiscalPrinterException(Throwable t) {
         super(t);
+        this.errorCode = null;
+    }
+
+    /**
+     * @return error number reported by the printer (also when this exception
+     * wraps the one thrown by the driver) or null when the printer did not
+     * report an error - e.g. on a transmission failure
+     */
+    public String getErrorCode() {
+        for (Throwable t = this; t != null; t = t.getCause()) {
+            if (t instanceof FiscalPrinterException && ((FiscalPrinterException) t).errorCode != null) {
+                return ((FiscalPrinterException) t).errorCode;
+            }
+        }
+        return null;
     }
 }
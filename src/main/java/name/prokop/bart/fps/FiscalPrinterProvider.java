@@ -0,0 +1,47 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps;
+
+import java.util.Collection;
+
+/**
+ * Source of fiscal printer drivers, looked up with java.util.ServiceLoader.
+ *
+ * A third-party driver jar plugs in by shipping an implementation and
+ * listing it in META-INF/services/name.prokop.bart.fps.FiscalPrinterProvider.
+ * Its types can then be used by name wherever FiscalPrinterRegistry is
+ * consulted (CloudPrint, CommandLinePrint), without editing
+ * FiscalPrinter.Type.
+ *
+ * @author Bartłomiej Prokop
+ */
+public interface FiscalPrinterProvider {
+
+    /**
+     * @return names of printer types created by this provider
+     */
+    public Collection<String> getTypeNames();
+
+    /**
+     * Creates a new driver.
+     *
+     * @param typeName one of getTypeNames()
+     * @param comPort serial port name or transport URI
+     * @return printer driver
+     * @throws FiscalPrinterException when driver cannot be created
+     */
+    public FiscalPrinter getFiscalPrinter(String typeName, String comPort) throws FiscalPrinterException;
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Looks up printer drivers by type name and keeps one driver per type and
+ * port.
+ *
+ * Providers are discovered with ServiceLoader on first use. The built-in
+ * FiscalPrinter.Type entries come first, then third-party providers (see
+ * FiscalPrinterProvider). Driver classes are loaded only when a driver of
+ * their type is first requested. getFiscalPrinter() returns the same
+ * instance for repeated calls with the same type and port. Repeated jobs
+ * thus reuse a warm driver with its cached device capabilities and port
+ * session, instead of building a new one for every slip.
+ *
+ * @author Bartłomiej Prokop
+ */
+public final class FiscalPrinterRegistry {
+
+    private static final Logger logger = Logger.getLogger(FiscalPrinterRegistry.class.getName());
+    private static volatile Map<String, FiscalPrinterProvider> providers;
+    private static final Map<String, FiscalPrinter> printers = new ConcurrentHashMap<>();
+
+    private FiscalPrinterRegistry() {
+    }
+
+    /**
+     * @return names of all known printer types
+     */
+    public static Set<String> getTypeNames() {
+        return Collections.unmodifiableSet(getProviders().keySet());
+    }
+
+    /**
+     * Returns the driver for given type and port, creating it on first use.
+     *
+     * @param typeName printer type, e.g. "Posnet101"
+     * @param comPort serial port name or transport URI
+     * @return shared printer driver
+     * @throws FiscalPrinterException when type is unknown or driver cannot be
+     * created
+     */
+    public static FiscalPrinter getFiscalPrinter(String typeName, String comPort) throws FiscalPrinterException {
+        String key = typeName + '\n' + comPort;
+        FiscalPrinter printer = printers.get(key);
+        if (printer == null) {
+            synchronized (printers) {
+                printer = printers.get(key);
+                if (printer == null) {
+                    printer = createFiscalPrinter(typeName, comPort);
+                    printers.put(key, printer);
+                }
+            }
+        }
+        return printer;
+    }
+
+    /**
+     * Creates a new driver, bypassing the cache.
+     *
+     * @param typeName printer type, e.g. "Posnet101"
+     * @param comPort serial port name or transport URI
+     * @return new printer driver
+     * @throws FiscalPrinterException when type is unknown or driver cannot be
+     * created
+     */
+    public static FiscalPrinter createFiscalPrinter(String typeName, String comPort) throws FiscalPrinterException {
+        FiscalPrinterProvider provider = getProviders().get(typeName);
+        if (provider == null) {
+            throw new FiscalPrinterException("Nieznany typ drukarki: " + typeName);
+        }
+        return provider.getFiscalPrinter(typeName, comPort);
+    }
+
+    /**
+     * Forgets cached drivers of given port - e.g. after the printer on that
+     * port was replaced by a different model.
+     *
+     * @param comPort serial port name or transport URI
+     */
+    public static void release(String comPort) {
+        printers.keySet().removeIf(key -> key.endsWith('\n' + comPort));
+    }
+
+    private static Map<String, FiscalPrinterProvider> getProviders() {
+        Map<String, FiscalPrinterProvider> map = providers;
+        if (map == null) {
+            synchronized (FiscalPrinterRegistry.class) {
+                map = providers;
+                if (map == null) {
+                    map = loadProviders();
+                    providers = map;
+                }
+            }
+        }
+        return map;
+    }
+
+    private static Map<String, FiscalPrinterProvider> loadProviders() {
+        Map<String, FiscalPrinterProvider> map = new LinkedHashMap<>();
+        register(map, new BuiltInPrinterProvider());
+        try {
+            for (FiscalPrinterProvider provider : ServiceLoader.load(FiscalPrinterProvider.class)) {
+                if (!(provider instanceof BuiltInPrinterProvider)) {
+                    // wbudowane są rejestrowane zawsze, także gdy brak pliku usług
+                    register(map, provider);
+                }
+            }
+        } catch (ServiceConfigurationError e) {
+            logger.log(Level.WARNING, "Błąd ładowania sterowników drukarek", e);
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    private static void register(Map<String, FiscalPrinterProvider> map, FiscalPrinterProvider provider) {
+        for (String name : provider.getTypeNames()) {
+            if (map.containsKey(name)) {
+                logger.warning("Typ drukarki " + name + " z " + provider.getClass().getName() + " pominięty - już zarejestrowany");
+            } else {
+                map.put(name, provider);
+            }
+        }
+    }
+}
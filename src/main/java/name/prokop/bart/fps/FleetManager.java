@@ -0,0 +1,513 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import name.prokop.bart.fps.datamodel.Slip;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Drives many printers, each fed from its own cloud queue, from one process.
+ *
+ * All devices share one bounded thread pool, so the number of threads (and
+ * the memory they take) does not grow with the number of printers. Every
+ * device has a bounded queue of fetched slips; while it is full the device
+ * stops pulling from its cloud queue, so a slow or broken printer holds at
+ * most "capacity" slips and never starves the others. Slips of one device
+ * are printed one after another in fetch order.
+ *
+ * With "multiQueue" set, queues are not polled one by one: a single thread
+ * keeps one long-poll request open for all devices that have room for a
+ * slip, {@code GET queueUrl?queues=id1,id2&wait=30}, and the server answers
+ * with the first slip queued for any of them, naming its queue in the
+ * X-Queue-Id header. The fleet then holds one connection to the server
+ * however many printers it drives. A device left out of the request because
+ * it was full is topped up with a plain request after each printed slip,
+ * until the next long-poll includes it again. The server must support this
+ * request (util.CloudQueueServer does).
+ *
+ * Configuration (JSON):
+ * <pre>
+ * {
+ *   "threads": 8,
+ *   "pollInterval": 500,
+ *   "multiQueue": true,
+ *   "wait": 30,
+ *   "queueUrl": "https://fiscal-printer.appspot.com/v1/queue/",
+ *   "printers": [
+ *     {"type": "Thermal301", "port": "COM1", "queue": "uuid-1", "capacity": 2},
+ *     {"type": "ElzabMera", "port": "tcp://10.0.0.12:4001", "queue": "uuid-2"}
+ *   ]
+ * }
+ * </pre>
+ * Only "printers" is required.
+ *
+ * @author Bartłomiej Prokop
+ */
+public class FleetManager implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(FleetManager.class.getName());
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_CAPACITY = 2;
+    public static final long DEFAULT_POLL_INTERVAL = 500;
+    private final ScheduledExecutorService pool;
+    private final List<Device> devices = new ArrayList<>();
+    private final long pollInterval;
+    private final String queueUrl;
+    private final boolean multiQueue;
+    private final int wait;
+    private final Map<String, Device> byQueue = new LinkedHashMap<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile Thread poller;
+
+    /**
+     * Creates the fleet, printers are not touched until start().
+     *
+     * @param config configuration, see class description
+     * @throws IOException when configuration is invalid
+     */
+    public FleetManager(JSONObject config) throws IOException {
+        JSONArray printers = config.optJSONArray("printers");
+        if (printers == null || printers.length() == 0) {
+            throw new IOException("Brak drukarek w konfiguracji");
+        }
+        queueUrl = config.optString("queueUrl", CloudPrint.QUEUE_URL);
+        pollInterval = config.optLong("pollInterval", DEFAULT_POLL_INTERVAL);
+        multiQueue = config.optBoolean("multiQueue", false);
+        wait = config.optInt("wait", CloudQueue.DEFAULT_WAIT);
+        for (int i = 0; i < printers.length(); i++) {
+            JSONObject p = printers.getJSONObject(i);
+            String type = p.getString("type");
+            if (!FiscalPrinterRegistry.getTypeNames().contains(type)) {
+                throw new IOException("Nieznany typ drukarki: " + type);
+            }
+            String port = p.getString("port");
+            String queue = p.getString("queue");
+            Device device = new Device(type, port, queue, new URL(queueUrl + queue), p.optInt("capacity", DEFAULT_CAPACITY));
+            if (byQueue.put(queue, device) != null && multiQueue) {
+                throw new IOException("Kolejka " + queue + " przypisana do kilku drukarek");
+            }
+            devices.add(device);
+        }
+        final AtomicInteger counter = new AtomicInteger();
+        pool = Executors.newScheduledThreadPool(config.optInt("threads", DEFAULT_THREADS), r -> {
+            Thread t = new Thread(r, "FleetManager " + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Reads configuration from given file.
+     *
+     * @param fileName JSON configuration file
+     * @return fleet, not started
+     * @throws IOException when file cannot be read or is invalid
+     */
+    public static FleetManager load(String fileName) throws IOException {
+        try (Reader reader = Files.newBufferedReader(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            return new FleetManager(new JSONObject(new JSONTokener(reader)));
+        }
+    }
+
+    /**
+     * Starts polling cloud queues of all devices.
+     */
+    public void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        if (multiQueue) {
+            poller = new Thread(this::pollQueues, "FleetManager poller");
+            poller.setDaemon(true);
+            poller.start();
+            return;
+        }
+        long step = Math.max(1, pollInterval / devices.size());
+        for (int i = 0; i < devices.size(); i++) {
+            // pierwsze odpytania rozłożone w czasie, żeby nie budzić wszystkich kolejek naraz
+            pool.scheduleWithFixedDelay(devices.get(i)::fetch, i * step, pollInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return status snapshot of every device, in configuration order
+     */
+    public List<DeviceStatus> getStatus() {
+        List<DeviceStatus> status = new ArrayList<>(devices.size());
+        for (Device device : devices) {
+            status.add(device.status());
+        }
+        return Collections.unmodifiableList(status);
+    }
+
+    /**
+     * @return human readable status table with totals
+     */
+    public String getStatusReport() {
+        StringBuilder sb = new StringBuilder();
+        long printed = 0, failed = 0, throttled = 0;
+        int pending = 0, busy = 0;
+        for (DeviceStatus s : getStatus()) {
+            sb.append(s).append('\n');
+            printed += s.getPrinted();
+            failed += s.getFailed();
+            throttled += s.getThrottled();
+            pending += s.getPending();
+            busy += s.isPrinting() ? 1 : 0;
+        }
+        sb.append("Devices: ").append(devices.size()).append(", printing: ").append(busy).append(", pending: ").append(pending);
+        sb.append(", printed: ").append(printed).append(", failed: ").append(failed).append(", throttled polls: ").append(throttled);
+        return sb.toString();
+    }
+
+    /**
+     * Stops polling; slips already fetched are printed before the pool
+     * terminates.
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+        Thread t = poller;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    private void pollQueues() {
+        long backoff = 0;
+        while (!pool.isShutdown()) {
+            try {
+                long start = System.nanoTime();
+                try {
+                    URL url = multiQueueUrl();
+                    if (url == null) {
+                        // wszystkie drukarki mają komplet paragonów
+                        Thread.sleep(pollInterval);
+                        continue;
+                    }
+                    HttpURLConnection conn = CloudQueue.request(url, wait);
+                    backoff = 0;
+                    if (conn == null) {
+                        CloudQueue.pace(start, pollInterval);
+                        continue;
+                    }
+                    String queue = conn.getHeaderField("X-Queue-Id");
+                    Slip slip;
+                    try (InputStream in = conn.getInputStream(); SlipJsonReader reader = new SlipJsonReader(in)) {
+                        slip = reader.toSlip();
+                    } catch (IOException | RuntimeException e) {
+                        // paragon jest już zdjęty z kolejki
+                        logger.log(Level.SEVERE, "Nieczytelny paragon z kolejki " + queue, e);
+                        continue;
+                    }
+                    Device device = byQueue.get(queue);
+                    if (device == null) {
+                        logger.log(Level.SEVERE, "Paragon " + slip.getReference() + " z nieznanej kolejki " + queue);
+                    } else {
+                        device.deliver(slip);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // jedyny wątek pobierający dla wszystkich drukarek - nie może się zakończyć
+                    backoff = CloudQueue.nextBackoff(backoff, pollInterval);
+                    long delay = CloudQueue.jitter(backoff);
+                    logger.log(Level.WARNING, "Błąd kolejki " + queueUrl + ", ponowienie za " + delay + " ms: " + e);
+                    Thread.sleep(delay);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return long-poll URL naming the queues of all devices with room for a
+     * slip or null when there are none
+     */
+    private URL multiQueueUrl() throws IOException {
+        StringBuilder queues = new StringBuilder();
+        for (Device device : devices) {
+            if (device.include()) {
+                queues.append(queues.length() == 0 ? "" : ",").append(URLEncoder.encode(device.queue, "UTF-8"));
+            }
+        }
+        if (queues.length() == 0) {
+            return null;
+        }
+        return new URL(queueUrl + (queueUrl.indexOf('?') < 0 ? '?' : '&') + "queues=" + queues + "&wait=" + wait);
+    }
+
+    public static void main(String... args) throws Exception {
+        if (args.length != 1) {
+            System.out.println("Usage: fleet-config.json");
+            return;
+        }
+        FleetManager fleet = load(args[0]);
+        fleet.start();
+        while (true) {
+            Thread.sleep(60000);
+            System.out.println(fleet.getStatusReport());
+        }
+    }
+
+    /**
+     * Point in time status of one device.
+     */
+    public static class DeviceStatus {
+
+        private final String type;
+        private final String port;
+        private final String queue;
+        private final int pending;
+        private final int capacity;
+        private final boolean printing;
+        private final long printed;
+        private final long failed;
+        private final long throttled;
+        private final PrintResult lastResult;
+
+        DeviceStatus(String type, String port, String queue, int pending, int capacity, boolean printing, long printed, long failed, long throttled, PrintResult lastResult) {
+            this.type = type;
+            this.port = port;
+            this.queue = queue;
+            this.pending = pending;
+            this.capacity = capacity;
+            this.printing = printing;
+            this.printed = printed;
+            this.failed = failed;
+            this.throttled = throttled;
+            this.lastResult = lastResult;
+        }
+
+        /**
+         * @return printer type name, see FiscalPrinterRegistry
+         */
+        public String getType() {
+            return type;
+        }
+
+        public String getPort() {
+            return port;
+        }
+
+        public String getQueue() {
+            return queue;
+        }
+
+        /**
+         * @return slips fetched and waiting for the printer
+         */
+        public int getPending() {
+            return pending;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public boolean isPrinting() {
+            return printing;
+        }
+
+        public long getPrinted() {
+            return printed;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return polls skipped because the pending queue was full
+         */
+        public long getThrottled() {
+            return throttled;
+        }
+
+        /**
+         * @return result of the last printed slip or null
+         */
+        public PrintResult getLastResult() {
+            return lastResult;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + port + " [" + queue + "] " + (printing ? "printing" : "idle") + ", pending " + pending + "/" + capacity
+                    + ", printed " + printed + ", failed " + failed + ", throttled " + throttled + (lastResult != null ? ", last: " + lastResult : "");
+        }
+    }
+
+    private class Device {
+
+        private final String type;
+        private final String port;
+        private final String queue;
+        private final URL url;
+        private final int capacity;
+        private final BlockingQueue<Slip> pending;
+        private final AtomicBoolean printing = new AtomicBoolean();
+        private final AtomicLong printed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong throttled = new AtomicLong();
+        private volatile PrintResult lastResult;
+        // tryb multiQueue: pominięta w bieżącym zapytaniu zbiorczym / trwa pojedyncze pobranie
+        private boolean excluded;
+        private boolean fetching;
+        private FiscalPrinter fiscalPrinter;
+
+        Device(String type, String port, String queue, URL url, int capacity) {
+            this.type = type;
+            this.port = port;
+            this.queue = queue;
+            this.url = url;
+            this.capacity = Math.max(1, capacity);
+            this.pending = new ArrayBlockingQueue<>(this.capacity);
+        }
+
+        void fetch() {
+            if (pending.remainingCapacity() == 0) {
+                throttled.incrementAndGet();
+                return;
+            }
+            try {
+                Slip slip = CloudPrint.retrieveSlip(url);
+                if (slip != null) {
+                    pending.add(slip);
+                    schedulePrint();
+                }
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Błąd kolejki " + queue + " (" + port + "): " + e);
+            }
+        }
+
+        /**
+         * Decides whether the next multi-queue request should name this
+         * device's queue.
+         */
+        synchronized boolean include() {
+            boolean full = pending.remainingCapacity() == 0;
+            if (full) {
+                throttled.incrementAndGet();
+            }
+            excluded = full || fetching;
+            return !excluded;
+        }
+
+        /**
+         * Queues a slip received by the multi-queue request.
+         */
+        void deliver(Slip slip) {
+            if (!pending.offer(slip)) {
+                // nie powinno się zdarzyć - kolejka była w zapytaniu tylko, gdy było miejsce
+                logger.log(Level.SEVERE, "Brak miejsca na paragon " + slip.getReference() + " drukarki " + port);
+                return;
+            }
+            schedulePrint();
+        }
+
+        /**
+         * Tops up a device left out of the running multi-queue request, so
+         * it does not wait for that request to come back.
+         */
+        private synchronized void catchUp() {
+            if (!excluded || fetching || pending.remainingCapacity() == 0) {
+                return;
+            }
+            fetching = true;
+            try {
+                pool.execute(() -> {
+                    try {
+                        fetch();
+                    } finally {
+                        synchronized (this) {
+                            fetching = false;
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                fetching = false;
+            }
+        }
+
+        private void schedulePrint() {
+            if (!pending.isEmpty() && printing.compareAndSet(false, true)) {
+                try {
+                    pool.execute(this::printNext);
+                } catch (RejectedExecutionException e) {
+                    printing.set(false);
+                }
+            }
+        }
+
+        private void printNext() {
+            Slip slip = pending.poll();
+            if (slip != null) {
+                long start = System.currentTimeMillis();
+                try {
+                    if (fiscalPrinter == null) {
+                        // ten sam sterownik co w innych częściach programu dla tego portu
+                        fiscalPrinter = FiscalPrinterRegistry.getFiscalPrinter(type, port);
+                    }
+                    fiscalPrinter.print(slip);
+                    lastResult = PrintResult.success(slip.getReference(), start);
+                    printed.incrementAndGet();
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Błąd drukarki " + port, e);
+                    lastResult = PrintResult.failure(slip.getReference(), start, e);
+                    failed.incrementAndGet();
+                }
+            }
+            // wątek wraca do puli po każdym paragonie - kolejny paragon tej drukarki
+            // ustawia się w kolejce za pracą pozostałych urządzeń
+            printing.set(false);
+            if (multiQueue) {
+                catchUp();
+            }
+            schedulePrint();
+        }
+
+        DeviceStatus status() {
+            return new DeviceStatus(type, port, queue, pending.size(), capacity, printing.get(), printed.get(), failed.get(), throttled.get(), lastResult);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONObject;
+
+/**
+ * Prints slip files dropped into a directory, for systems that can only
+ * write files.
+ *
+ * A file "*.json" holds one slip, a file "*.ndjson" one slip per line, in
+ * the CloudPrint format. The directory is watched with WatchService; a file
+ * is taken once it has not changed for QUIET milliseconds, so writers need
+ * not rename it into place (though writing under another name, e.g. *.tmp,
+ * and renaming is safest). Files starting with a dot are ignored.
+ *
+ * All files go through one driver, opened once. After a file is printed it
+ * is moved to done/, or to failed/ when any of its slips failed, next to a
+ * sidecar "name.result" with one outcome per line (see StatusReporter) in
+ * file order. The sidecar is moved into place before the file itself.
+ * A printer error stops the file: its remaining slips are reported as
+ * "skipped" and not printed, so the sidecar tells exactly which slips are on
+ * paper (see SlipBatch). An unreadable line fails only that slip.
+ *
+ * @author Bartłomiej Prokop
+ */
+public class FolderPrint implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(FolderPrint.class.getName());
+    public static final long QUIET = 500;
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+    public static final String RESULT = ".result";
+    private final Path dir;
+    private final Path done;
+    private final Path failed;
+    private final FiscalPrinter fiscalPrinter;
+    private final WatchService watcher;
+    // plik -> czas ostatniej zmiany (System.nanoTime())
+    private final Map<Path, Long> changed = new HashMap<>();
+
+    /**
+     * @param dir watched directory; done/ and failed/ are created in it
+     * @param fiscalPrinter printer
+     * @throws IOException when the directory cannot be watched
+     */
+    public FolderPrint(Path dir, FiscalPrinter fiscalPrinter) throws IOException {
+        this.dir = dir;
+        this.done = Files.createDirectories(dir.resolve(DONE));
+        this.failed = Files.createDirectories(dir.resolve(FAILED));
+        this.fiscalPrinter = fiscalPrinter;
+        this.watcher = dir.getFileSystem().newWatchService();
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    public static void main(String... args) throws Exception {
+        if (args.length != 3) {
+            System.out.println("Usage: PrinterType COMx spool-directory");
+            System.out.println("Avaiable PrinterTypes:");
+            for (String t : FiscalPrinterRegistry.getTypeNames()) {
+                System.out.print(" " + t);
+            }
+            return;
+        }
+        FiscalPrinter fiscalPrinter = FiscalPrinterRegistry.getFiscalPrinter(args[0], args[1]);
+        try (FolderPrint folderPrint = new FolderPrint(Paths.get(args[2]), fiscalPrinter)) {
+            System.out.println("Printer: " + args[0] + ", port: " + args[1] + ", directory: " + args[2] + ".");
+            folderPrint.run();
+        }
+    }
+
+    /**
+     * Prints files already in the directory, then new ones as they come,
+     * until the thread is interrupted or close() is called.
+     */
+    public void run() {
+        scan();
+        try {
+            while (true) {
+                WatchKey key = watcher.poll(nextDeadline(), TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            scan();
+                        } else {
+                            offer(dir.resolve((Path) event.context()));
+                        }
+                    }
+                    key.reset();
+                }
+                for (Path file : takeQuiet()) {
+                    process(file);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // koniec pracy
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+    }
+
+    /**
+     * Prints one file and moves it to done/ or failed/.
+     *
+     * @param file slip file
+     * @return true when every slip was printed
+     */
+    public boolean process(Path file) {
+        List<JSONObject> results = new ArrayList<>();
+        boolean ok;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (file.getFileName().toString().endsWith(".ndjson")) {
+                ok = SlipBatch.printLines(fiscalPrinter, reader, results::add);
+            } else {
+                JSONObject result = SlipBatch.printOne(fiscalPrinter, reader);
+                results.add(result);
+                ok = SlipBatch.PRINTED.equals(result.get("status"));
+            }
+        } catch (IOException e) {
+            // plik zniknął albo nie da się go czytać - nic nie zostało wydrukowane po tym miejscu
+            logger.log(Level.WARNING, "Błąd odczytu " + file, e);
+            ok = false;
+        } catch (RuntimeException e) {
+            // plik musi trafić do failed/ razem z wynikami - inaczej po ponownym
+            // uruchomieniu wydrukowane już paragony zostałyby wydrukowane drugi raz
+            logger.log(Level.SEVERE, "Błąd przetwarzania " + file, e);
+            ok = false;
+        }
+        try {
+            Path target = ok ? done : failed;
+            StringBuilder sidecar = new StringBuilder();
+            for (JSONObject result : results) {
+                sidecar.append(result).append('\n');
+            }
+            Path tmp = Files.createTempFile(target, ".", ".tmp");
+            Files.write(tmp, sidecar.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, target.resolve(file.getFileName() + RESULT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(file, target.resolve(file.getFileName()), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Nie da się przenieść " + file + " - wydruk może się powtórzyć", e);
+        }
+        return ok;
+    }
+
+    private void scan() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                offer(file);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Błąd odczytu katalogu " + dir, e);
+        }
+    }
+
+    private void offer(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(".") && (name.endsWith(".json") || name.endsWith(".ndjson")) && Files.isRegularFile(file)) {
+            changed.put(file, System.nanoTime());
+        }
+    }
+
+    private long nextDeadline() {
+        long now = System.nanoTime();
+        long wait = TimeUnit.SECONDS.toMillis(1);
+        for (long t : changed.values()) {
+            wait = Math.min(wait, QUIET - TimeUnit.NANOSECONDS.toMillis(now - t));
+        }
+        return Math.max(1, wait);
+    }
+
+    private List<Path> takeQuiet() {
+        long now = System.nanoTime();
+        List<Path> quiet = new ArrayList<>();
+        for (Map.Entry<Path, Long> e : changed.entrySet()) {
+            if (TimeUnit.NANOSECONDS.toMillis(now - e.getValue()) >= QUIET) {
+                quiet.add(e.getKey());
+            }
+        }
+        changed.keySet().removeAll(quiet);
+        // pliki w kolejności nazw - nazwy z datą drukują się chronologicznie
+        Collections.sort(quiet);
+        List<Path> present = new ArrayList<>(quiet.size());
+        for (Path file : quiet) {
+            if (Files.isRegularFile(file)) {
+                present.add(file);
+            }
+        }
+        return present;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import name.prokop.bart.fps.datamodel.Slip;
+import org.json.JSONObject;
+
+/**
+ * Resident print process for POS systems that start CommandLinePrint once
+ * per slip. The daemon keeps drivers loaded and ports open, so a slip costs
+ * only the printer time; CommandLinePrint finds a running daemon and hands
+ * the slip over instead of opening the port itself.
+ *
+ * The daemon listens on the loopback interface only. Protocol - one line per
+ * request, any number of requests per connection:
+ * <pre>
+ * request:  PrinterType TAB COMx TAB slip JSON (one line)
+ * response: outcome JSON (one line), as reported by StatusReporter
+ * </pre>
+ * Slips for one printer are printed one at a time, slips for different
+ * printers in parallel.
+ *
+ * @author Bartłomiej Prokop
+ */
+public class PrintDaemon implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(PrintDaemon.class.getName());
+    public static final int DEFAULT_PORT = 8082;
+    /**
+     * System property with the daemon TCP port.
+     */
+    public static final String PORT_PROPERTY = "name.prokop.bart.fps.daemon.port";
+    private static final int CLIENT_TIMEOUT = 5 * 60 * 1000;
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+
+    /**
+     * Starts the daemon.
+     *
+     * @param port TCP port on the loopback interface, 0 - any free port
+     * @throws IOException when the port cannot be opened
+     */
+    public PrintDaemon(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "PrintDaemon");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.execute(this::accept);
+    }
+
+    /**
+     * @return daemon TCP port from PORT_PROPERTY or DEFAULT_PORT
+     */
+    public static int getDefaultPort() {
+        return Integer.getInteger(PORT_PROPERTY, DEFAULT_PORT);
+    }
+
+    public static void main(String... args) throws Exception {
+        PrintDaemon daemon = new PrintDaemon(args.length > 0 ? Integer.parseInt(args[0]) : getDefaultPort());
+        System.out.println("Print daemon on port " + daemon.getPort());
+        Thread.currentThread().join();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Hands a slip over to a running daemon.
+     *
+     * @param port daemon TCP port
+     * @param type printer type
+     * @param comPort port name or transport URI
+     * @param json slip
+     * @return outcome, see StatusReporter
+     * @throws java.net.ConnectException when no daemon is running
+     * @throws IOException on communication error
+     */
+    public static JSONObject print(int port, String type, String comPort, String json) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(CLIENT_TIMEOUT);
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            // JSON w jednym wierszu - toString() nie zostawia znaków nowej linii
+            out.write(type + '\t' + comPort + '\t' + new JSONObject(json) + '\n');
+            out.flush();
+            String line = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+            if (line == null) {
+                throw new IOException("Demon wydruku zamknął połączenie");
+            }
+            return new JSONObject(line);
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                executor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    logger.log(Level.WARNING, "Błąd demona wydruku", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8);
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    out.write(print(line).toString() + '\n');
+                    out.flush();
+                }
+            }
+        } catch (SocketException e) {
+            // klient rozłączył się
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Błąd połączenia z klientem", e);
+        }
+    }
+
+    private JSONObject print(String request) {
+        long received = System.currentTimeMillis();
+        String[] fields = request.split("\t", 3);
+        if (fields.length != 3) {
+            return StatusReporter.toJson(PrintResult.failure(null, received, new FiscalPrinterException("Niepoprawne zlecenie")), received);
+        }
+        String reference = null;
+        long start = received;
+        try (SlipJsonReader reader = new SlipJsonReader(new StringReader(fields[2]))) {
+            Slip slip = reader.toSlip();
+            reference = slip.getReference();
+            FiscalPrinter fiscalPrinter = FiscalPrinterRegistry.getFiscalPrinter(fields[0], fields[1]);
+            // sterownik jest wspólny dla wszystkich klientów tej drukarki
+            synchronized (fiscalPrinter) {
+                start = System.currentTimeMillis();
+                fiscalPrinter.print(slip);
+            }
+            return StatusReporter.toJson(PrintResult.success(reference, start), received);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Błąd drukarki " + fields[1], e);
+            return StatusReporter.toJson(PrintResult.failure(reference, start, e), received);
+        }
+    }
+}
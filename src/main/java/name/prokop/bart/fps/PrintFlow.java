@@ -0,0 +1,85 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps;
+
+/**
+ * Reactive Streams interfaces with demand-based back-pressure - the same
+ * contract and method names as java.util.concurrent.Flow (Java 9), which
+ * this library cannot use while it targets Java 8. Adapting to the JDK or
+ * org.reactivestreams interfaces is a one-line delegation per method.
+ *
+ * @author Bartłomiej Prokop
+ */
+public final class PrintFlow {
+
+    private PrintFlow() {
+    }
+
+    /**
+     * Produces items for subscribers, never more than they requested.
+     *
+     * @param <T> item type
+     */
+    @FunctionalInterface
+    public interface Publisher<T> {
+
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * Receives items; onNext is called at most as many times as requested
+     * through the subscription, then onComplete or onError at most once.
+     *
+     * @param <T> item type
+     */
+    public interface Subscriber<T> {
+
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    /**
+     * Link between a publisher and one subscriber.
+     */
+    public interface Subscription {
+
+        /**
+         * Adds n items to the demand.
+         *
+         * @param n number of items, must be positive
+         */
+        void request(long n);
+
+        /**
+         * Stops delivery; items may still arrive for a short time.
+         */
+        void cancel();
+    }
+
+    /**
+     * Subscriber that publishes its own results.
+     *
+     * @param <T> item type received
+     * @param <R> item type published
+     */
+    public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps;
+
+/**
+ * Result of a single printer job (slip, invoice, drawer, daily report).
+ *
+ * @author Bartłomiej Prokop
+ */
+public class PrintResult {
+
+    private final String reference;
+    private final long startTime;
+    private final long duration;
+    private final Throwable error;
+
+    private PrintResult(String reference, long startTime, long duration, Throwable error) {
+        this.reference = reference;
+        this.startTime = startTime;
+        this.duration = duration;
+        this.error = error;
+    }
+
+    /**
+     * @param reference job reference (e.g. slip reference), may be null
+     * @param startTime job start, System.currentTimeMillis()
+     * @return successful result
+     */
+    public static PrintResult success(String reference, long startTime) {
+        return new PrintResult(reference, startTime, System.currentTimeMillis() - startTime, null);
+    }
+
+    /**
+     * @param reference job reference (e.g. slip reference), may be null
+     * @param startTime job start, System.currentTimeMillis()
+     * @param error failure cause
+     * @return failed result
+     */
+    public static PrintResult failure(String reference, long startTime, Throwable error) {
+        return new PrintResult(reference, startTime, System.currentTimeMillis() - startTime, error);
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    public String getReference() {
+        return reference;
+    }
+
+    /**
+     * @return job start, System.currentTimeMillis()
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return job duration in milliseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return failure cause or null
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * @return failure description or null
+     */
+    public String getErrorMessage() {
+        if (error == null) {
+            return null;
+        }
+        return error.getMessage() != null ? error.getMessage() : error.toString();
+    }
+
+    @Override
+    public String toString() {
+        return (isSuccess() ? "OK" : "ERROR: " + getErrorMessage()) + (reference != null ? " [" + reference + "]" : "") + " " + duration + " ms";
+    }
+}
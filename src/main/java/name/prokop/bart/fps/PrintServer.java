@@ -0,0 +1,314 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import name.prokop.bart.fps.datamodel.Slip;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Prints slips posted over HTTP by terminals on the local network - no cloud
+ * queue in between and no JVM start per slip. Slips use the same JSON as
+ * CloudPrint.
+ *
+ * <pre>
+ * POST /v1/print/{name}        - one slip; answers with its outcome once
+ *                                printed
+ * POST /v1/print/{name}/batch  - NDJSON, one slip per line; answers with one
+ *                                outcome per line once all are printed
+ * GET  /v1/print/{name}        - printer status
+ * </pre>
+ * With "?async" a POST returns 202 as soon as the slips are queued. Every
+ * printer has a queue of "capacity" slips; a request that does not fit gets
+ * 429 with Retry-After and nothing of it is queued, so a batch is taken
+ * whole or not at all. Unreadable JSON gets 400, again with nothing queued.
+ *
+ * Configuration (JSON):
+ * <pre>
+ * {
+ *   "port": 8081,
+ *   "printers": [
+ *     {"name": "kasa1", "type": "Thermal301", "port": "COM1", "capacity": 16},
+ *     {"name": "kasa2", "type": "ElzabMera", "port": "tcp://10.0.0.12:4001"}
+ *   ]
+ * }
+ * </pre>
+ * Only "printers" is required; "name" defaults to the port.
+ *
+ * @author Bartłomiej Prokop
+ */
+public class PrintServer implements AutoCloseable {
+
+    public static final int DEFAULT_PORT = 8081;
+    public static final int DEFAULT_CAPACITY = 16;
+    private static final String CONTEXT = "/v1/print/";
+    private static final String BATCH = "/batch";
+    private static final String RETRY_AFTER = "1";
+    private final Map<String, Binding> bindings = new LinkedHashMap<>();
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    static {
+        // bez tego nagłówki i treść odpowiedzi czekają na opóźnione ACK (~40 ms)
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    /**
+     * Opens the printers and starts the server.
+     *
+     * @param config configuration, see class description
+     * @throws IOException when configuration is invalid or port is taken
+     * @throws FiscalPrinterException when a driver cannot be created
+     */
+    public PrintServer(JSONObject config) throws IOException, FiscalPrinterException {
+        JSONArray printers = config.optJSONArray("printers");
+        if (printers == null || printers.length() == 0) {
+            throw new IOException("Brak drukarek w konfiguracji");
+        }
+        for (int i = 0; i < printers.length(); i++) {
+            JSONObject p = printers.getJSONObject(i);
+            String port = p.getString("port");
+            String name = p.optString("name", port);
+            if (bindings.containsKey(name)) {
+                throw new IOException("Powtórzona nazwa drukarki: " + name);
+            }
+            FiscalPrinter fiscalPrinter = FiscalPrinterRegistry.getFiscalPrinter(p.getString("type"), port);
+            bindings.put(name, new Binding(name, p.getString("type"), new AsyncFiscalPrinter(fiscalPrinter, port), p.optInt("capacity", DEFAULT_CAPACITY)));
+        }
+        server = HttpServer.create(new InetSocketAddress(config.optInt("port", DEFAULT_PORT)), 0);
+        // zapytanie czekające na wydruk zajmuje wątek
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "PrintServer");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext(CONTEXT, this::handle);
+        server.start();
+    }
+
+    /**
+     * Reads configuration from given file and starts the server.
+     *
+     * @param fileName JSON configuration file
+     * @return running server
+     * @throws IOException when file cannot be read or is invalid
+     * @throws FiscalPrinterException when a driver cannot be created
+     */
+    public static PrintServer load(String fileName) throws IOException, FiscalPrinterException {
+        try (Reader reader = Files.newBufferedReader(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            return new PrintServer(new JSONObject(new JSONTokener(reader)));
+        }
+    }
+
+    public static void main(String... args) throws Exception {
+        if (args.length != 1) {
+            System.out.println("Usage: print-server-config.json");
+            return;
+        }
+        PrintServer server = load(args[0]);
+        System.out.println("Print URL: " + server.getPrintUrl());
+        Thread.currentThread().join();
+    }
+
+    /**
+     * @return base URL, printer name to be appended
+     */
+    public String getPrintUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + CONTEXT;
+    }
+
+    /**
+     * Stops accepting requests; slips already queued are printed.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+        for (Binding binding : bindings.values()) {
+            binding.printer.close();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath().substring(CONTEXT.length());
+            boolean batch = path.endsWith(BATCH);
+            Binding binding = bindings.get(batch ? path.substring(0, path.length() - BATCH.length()) : path);
+            String method = exchange.getRequestMethod();
+            if (binding == null) {
+                send(exchange, 404, null, null);
+            } else if ("GET".equals(method) && !batch) {
+                send(exchange, 200, "application/json", binding.status().toString());
+            } else if ("POST".equals(method)) {
+                print(exchange, binding, batch, "async".equals(exchange.getRequestURI().getQuery()));
+            } else {
+                send(exchange, 405, null, null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, null, null);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void print(HttpExchange exchange, Binding binding, boolean batch, boolean async) throws IOException, InterruptedException {
+        List<Slip> slips = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+            if (!batch) {
+                slips.add(new SlipJsonReader(reader).toSlip());
+            } else {
+                String line;
+                for (int n = 1; (line = reader.readLine()) != null; n++) {
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    if (slips.size() == binding.capacity) {
+                        send(exchange, 413, "text/plain", "Paczka większa niż kolejka drukarki (" + binding.capacity + ")");
+                        return;
+                    }
+                    try (SlipJsonReader slip = new SlipJsonReader(new StringReader(line))) {
+                        slips.add(slip.toSlip());
+                    } catch (IOException e) {
+                        throw new IOException("Wiersz " + n + ": " + e.getMessage(), e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            send(exchange, 400, "text/plain", e.getMessage());
+            return;
+        }
+        if (!binding.permits.tryAcquire(slips.size())) {
+            exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER);
+            send(exchange, 429, "text/plain", "Kolejka drukarki " + binding.name + " pełna");
+            return;
+        }
+        long received = System.currentTimeMillis();
+        List<CompletableFuture<PrintResult>> results = new ArrayList<>(slips.size());
+        for (Slip slip : slips) {
+            results.add(binding.print(slip));
+        }
+        if (async) {
+            send(exchange, 202, "application/json", new JSONObject().put("queued", slips.size()).toString());
+            return;
+        }
+        StringBuilder body = new StringBuilder();
+        boolean success = true;
+        for (CompletableFuture<PrintResult> future : results) {
+            PrintResult result;
+            try {
+                result = future.get();
+            } catch (ExecutionException e) {
+                result = PrintResult.failure(null, received, e.getCause());
+            }
+            success &= result.isSuccess();
+            body.append(StatusReporter.toJson(result, received)).append('\n');
+        }
+        if (batch) {
+            send(exchange, 200, "application/x-ndjson", body.toString());
+        } else {
+            send(exchange, success ? 200 : 502, "application/json", body.toString().trim());
+        }
+    }
+
+    private static void send(HttpExchange exchange, int code, String contentType, String body) throws IOException {
+        if (body != null) {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+            exchange.sendResponseHeaders(code, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } else {
+            exchange.sendResponseHeaders(code, -1);
+        }
+    }
+
+    private static class Binding {
+
+        private final String name;
+        private final String type;
+        private final AsyncFiscalPrinter printer;
+        private final int capacity;
+        // wolne miejsca w kolejce - zajmowane przy przyjęciu, zwalniane po wydruku
+        private final Semaphore permits;
+        private final AtomicLong printed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private volatile PrintResult lastResult;
+
+        Binding(String name, String type, AsyncFiscalPrinter printer, int capacity) {
+            this.name = name;
+            this.type = type;
+            this.printer = printer;
+            this.capacity = Math.max(1, capacity);
+            this.permits = new Semaphore(this.capacity);
+        }
+
+        CompletableFuture<PrintResult> print(Slip slip) {
+            return printer.printAsync(slip).whenComplete((result, e) -> {
+                permits.release();
+                if (result != null && result.isSuccess()) {
+                    printed.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+                lastResult = result;
+            });
+        }
+
+        JSONObject status() {
+            JSONObject status = new JSONObject();
+            status.put("name", name);
+            status.put("type", type);
+            status.put("port", printer.getPort());
+            status.put("pending", capacity - permits.availablePermits());
+            status.put("capacity", capacity);
+            status.put("printed", printed.get());
+            status.put("failed", failed.get());
+            PrintResult last = lastResult;
+            if (last != null) {
+                status.put("last", last.toString());
+            }
+            return status;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import name.prokop.bart.fps.datamodel.Slip;
+
+/**
+ * Prints slips from any PrintFlow.Publisher and publishes their outcomes, asking
+ * for the next slip only when the printer is ready for it.
+ *
+ * Demand is one slip at a time: before each request the printer status is
+ * read with FiscalPrinter.isReady() (DLE flags on LB* drivers, sdev/sprn on
+ * Posnet), and while the printer is off line, out of paper or in a menu
+ * nothing is requested. A producer - a message bus bridge, the CloudPrint
+ * fetcher, a spool reader - is therefore held back by the printer instead of
+ * queueing slips in memory. When outcomes have a subscriber, its demand is
+ * honoured as well: no slip is requested until an outcome can be delivered.
+ * Without an outcome subscriber outcomes are only logged.
+ *
+ * Subscribe the outcome subscriber before subscribing this processor to the
+ * slip publisher, otherwise the first outcomes may be missed. Only one
+ * outcome subscriber is supported.
+ *
+ * @author Bartłomiej Prokop
+ */
+public class PrinterSubscriber implements PrintFlow.Processor<Slip, PrintResult> {
+
+    private static final Logger logger = Logger.getLogger(PrinterSubscriber.class.getName());
+    /**
+     * First delay between status checks of a printer that is not ready, in
+     * milliseconds; doubled up to MAX_READY_CHECK.
+     */
+    public static final long READY_CHECK = 500;
+    public static final long MAX_READY_CHECK = 5000;
+    private final FiscalPrinter fiscalPrinter;
+    private final String name;
+    private final Object lock = new Object();
+    private PrintFlow.Subscription upstream;
+    private Slip next;
+    private boolean completed;
+    private Throwable error;
+    private PrintFlow.Subscriber<? super PrintResult> downstream;
+    private long demand;
+    private boolean cancelled;
+
+    /**
+     * @param fiscalPrinter printer
+     * @param name printer name, used for thread name and logs
+     */
+    public PrinterSubscriber(FiscalPrinter fiscalPrinter, String name) {
+        this.fiscalPrinter = fiscalPrinter;
+        this.name = name;
+    }
+
+    @Override
+    public void onSubscribe(PrintFlow.Subscription subscription) {
+        synchronized (lock) {
+            if (upstream != null) {
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+        }
+        Thread t = new Thread(this::run, "PrinterSubscriber " + name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void onNext(Slip slip) {
+        synchronized (lock) {
+            next = slip;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        synchronized (lock) {
+            error = throwable;
+            completed = true;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (lock) {
+            completed = true;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void subscribe(PrintFlow.Subscriber<? super PrintResult> subscriber) {
+        synchronized (lock) {
+            if (downstream == null) {
+                downstream = subscriber;
+            } else {
+                subscriber = null;
+            }
+        }
+        if (subscriber == null) {
+            throw new IllegalStateException("Wyniki drukarki " + name + " mają już odbiorcę");
+        }
+        subscriber.onSubscribe(new PrintFlow.Subscription() {
+            @Override
+            public void request(long n) {
+                synchronized (lock) {
+                    if (n <= 0) {
+                        error = new IllegalArgumentException("request(" + n + ")");
+                        cancelled = true;
+                    } else {
+                        demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                    }
+                    lock.notifyAll();
+                }
+            }
+
+            @Override
+            public void cancel() {
+                synchronized (lock) {
+                    cancelled = true;
+                    lock.notifyAll();
+                }
+            }
+        });
+    }
+
+    private void run() {
+        try {
+            while (awaitDemand() && awaitReady()) {
+                upstream.request(1);
+                Slip slip = awaitSlip();
+                if (slip == null) {
+                    break;
+                }
+                PrintResult result = print(slip);
+                PrintFlow.Subscriber<? super PrintResult> subscriber;
+                synchronized (lock) {
+                    subscriber = cancelled ? null : downstream;
+                    if (subscriber != null) {
+                        demand--;
+                    }
+                }
+                if (subscriber != null) {
+                    subscriber.onNext(result);
+                } else {
+                    logger.info(name + ": " + result);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finish();
+    }
+
+    /**
+     * @return false when the stream is finished or outcomes are no longer
+     * wanted
+     */
+    private boolean awaitDemand() throws InterruptedException {
+        synchronized (lock) {
+            while (!completed && !cancelled && downstream != null && demand == 0) {
+                lock.wait();
+            }
+            return !completed && !cancelled;
+        }
+    }
+
+    /**
+     * Waits until the printer reports it can print, checking its status less
+     * and less often.
+     *
+     * @return false when the stream finished in the meantime
+     */
+    private boolean awaitReady() throws InterruptedException {
+        long delay = READY_CHECK;
+        while (true) {
+            try {
+                if (fiscalPrinter.isReady()) {
+                    return true;
+                }
+                logger.fine("Drukarka " + name + " niegotowa");
+            } catch (FiscalPrinterException e) {
+                logger.log(Level.WARNING, "Brak odpowiedzi drukarki " + name + ": " + e.getMessage());
+            }
+            synchronized (lock) {
+                TimeUnit.MILLISECONDS.timedWait(lock, delay);
+                if (completed || cancelled) {
+                    return false;
+                }
+            }
+            delay = Math.min(delay * 2, MAX_READY_CHECK);
+        }
+    }
+
+    /**
+     * @return slip requested from upstream or null when the stream finished
+     * without it
+     */
+    private Slip awaitSlip() throws InterruptedException {
+        synchronized (lock) {
+            while (next == null && !completed && !cancelled) {
+                lock.wait();
+            }
+            Slip slip = next;
+            next = null;
+            return slip;
+        }
+    }
+
+    private PrintResult print(Slip slip) {
+        long start = System.currentTimeMillis();
+        try {
+            fiscalPrinter.print(slip);
+            return PrintResult.success(slip.getReference(), start);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Błąd drukarki " + name, e);
+            return PrintResult.failure(slip.getReference(), start, e);
+        }
+    }
+
+    private void finish() {
+        PrintFlow.Subscriber<? super PrintResult> subscriber;
+        Throwable failure;
+        boolean cancel;
+        synchronized (lock) {
+            subscriber = downstream;
+            failure = error;
+            cancel = cancelled;
+        }
+        if (cancel) {
+            // odbiorca wyników zrezygnował - nie ma sensu pobierać kolejnych paragonów
+            upstream.cancel();
+            if (subscriber != null && failure != null) {
+                subscriber.onError(failure);
+            }
+        } else if (subscriber != null) {
+            if (failure != null) {
+                subscriber.onError(failure);
+            } else {
+                subscriber.onComplete();
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import name.prokop.bart.fps.datamodel.Slip;
+import org.json.JSONObject;
+
+/**
+ * Prints a sequence of slips (NDJSON - one slip per line) through one
+ * driver, reporting one outcome per line as it goes. Used by FolderPrint and
+ * the batch mode of CommandLinePrint.
+ *
+ * A printer error stops the batch: remaining lines are read but not
+ * printed, their status is "skipped", so the outcomes tell exactly which
+ * slips are on paper. An unreadable line fails only that slip.
+ *
+ * @author Bartłomiej Prokop
+ */
+final class SlipBatch {
+
+    private static final Logger logger = Logger.getLogger(SlipBatch.class.getName());
+    public static final String PRINTED = "printed";
+    public static final String SKIPPED = "skipped";
+
+    private SlipBatch() {
+    }
+
+    /**
+     * Prints every line read from reader.
+     *
+     * @param fiscalPrinter printer
+     * @param reader NDJSON source, read line by line
+     * @param out receives the outcome of each non-empty line (see
+     * StatusReporter) with its line number, in order
+     * @return true when every slip was printed
+     * @throws IOException when reading fails; outcomes already passed to out
+     * stay valid
+     */
+    static boolean printLines(FiscalPrinter fiscalPrinter, BufferedReader reader, Consumer<JSONObject> out) throws IOException {
+        boolean ok = true;
+        boolean stopped = false;
+        String line;
+        for (int n = 1; (line = reader.readLine()) != null; n++) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            JSONObject result;
+            if (stopped) {
+                result = new JSONObject().put("status", SKIPPED);
+            } else {
+                Outcome outcome = print(fiscalPrinter, new StringReader(line));
+                stopped = outcome.printerError;
+                result = outcome.result;
+            }
+            ok &= PRINTED.equals(result.get("status"));
+            out.accept(result.put("line", n));
+        }
+        return ok;
+    }
+
+    /**
+     * Prints one slip.
+     *
+     * @param fiscalPrinter printer
+     * @param reader slip JSON
+     * @return outcome, see StatusReporter
+     */
+    static JSONObject printOne(FiscalPrinter fiscalPrinter, Reader reader) {
+        return print(fiscalPrinter, reader).result;
+    }
+
+    private static Outcome print(FiscalPrinter fiscalPrinter, Reader reader) {
+        long received = System.currentTimeMillis();
+        Slip slip;
+        try (SlipJsonReader r = new SlipJsonReader(reader)) {
+            slip = r.toSlip();
+        } catch (IOException | RuntimeException e) {
+            // błąd danych tego wiersza - kolejne wiersze są drukowane dalej
+            return new Outcome(StatusReporter.toJson(PrintResult.failure(null, received, e), received), false);
+        }
+        try {
+            fiscalPrinter.print(slip);
+            return new Outcome(StatusReporter.toJson(PrintResult.success(slip.getReference(), received), received), false);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Błąd drukarki", e);
+            return new Outcome(StatusReporter.toJson(PrintResult.failure(slip.getReference(), received, e), received), true);
+        }
+    }
+
+    private static class Outcome {
+
+        private final JSONObject result;
+        private final boolean printerError;
+
+        Outcome(JSONObject result, boolean printerError) {
+            this.result = result;
+            this.printerError = printerError;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import name.prokop.bart.fps.datamodel.SaleLine;
+import name.prokop.bart.fps.datamodel.Slip;
+import name.prokop.bart.fps.datamodel.SlipPayment;
+import name.prokop.bart.fps.datamodel.SlipStream;
+import name.prokop.bart.fps.datamodel.VATRate;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Pull parser for slips in the cloud queue JSON format:
+ * {"reference": ..., "cashier": ..., "register": ..., "items": [{"description":
+ * ..., "amount": ..., "unitPrice": ..., "vatRate": ...}, ...]}. Items are
+ * decoded one at a time, as the driver asks for them, so only a single item
+ * is held in memory. The header fields must precede "items" for that - when
+ * any of them is missing at that point, the items are buffered until the end
+ * of the document. The slip is paid in cash, in full.
+ *
+ * @author Bartłomiej Prokop
+ */
+public class SlipJsonReader extends SlipStream {
+
+    private final Reader reader;
+    private final JSONTokener tokener;
+    private final Slip header = new Slip();
+    private Deque<SaleLine> buffered;
+    private boolean inItems;
+    private boolean headerRead;
+    private int items;
+
+    /**
+     * @param in UTF-8 encoded JSON document
+     * @throws IOException when the document header cannot be read
+     */
+    public SlipJsonReader(InputStream in) throws IOException {
+        this(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param reader JSON document
+     * @throws IOException when the document header cannot be read
+     */
+    public SlipJsonReader(Reader reader) throws IOException {
+        this.reader = reader instanceof BufferedReader ? reader : new BufferedReader(reader);
+        this.tokener = new JSONTokener(this.reader);
+        try {
+            if (tokener.nextClean() != '{') {
+                throw tokener.syntaxError("A JSON object text must begin with '{'");
+            }
+            readFields();
+            if (inItems && !headerRead) {
+                // header follows the items - they have to be read in full
+                buffered = new ArrayDeque<>();
+                SaleLine line;
+                while ((line = nextItem()) != null) {
+                    buffered.add(line);
+                }
+            }
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String getReference() {
+        return header.getReference();
+    }
+
+    @Override
+    public String getCashierName() {
+        return header.getCashierName();
+    }
+
+    @Override
+    public String getCashbox() {
+        return header.getCashbox();
+    }
+
+    @Override
+    protected SaleLine readLine() throws IOException {
+        if (buffered != null) {
+            return buffered.poll();
+        }
+        try {
+            return nextItem();
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    protected List<SlipPayment> readPayments() throws IOException {
+        if (header.getSlipPayments().isEmpty()) {
+            header.addPayment(SlipPayment.PaymentType.Cash, getTotal(), null);
+        }
+        return Collections.unmodifiableList(header.getSlipPayments());
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Converts a single queue item to a slip line.
+     *
+     * @param jsonItem queue item
+     * @return slip line
+     * @throws IllegalArgumentException when "vatRate" is not a VATRate name
+     */
+    static SaleLine toSaleLine(JSONObject jsonItem) {
+        SaleLine sl = new SaleLine();
+        sl.setName(jsonItem.optString("description", null));
+        sl.setAmount(jsonItem.optDouble("amount", 1.0));
+        sl.setPrice(jsonItem.optDouble("unitPrice", 0.01));
+        sl.setTaxRate(VATRate.valueOf(jsonItem.optString("vatRate", "VAT23")));
+        return sl;
+    }
+
+    /**
+     * Reads object members up to the beginning of the "items" array or up to
+     * the end of the object.
+     */
+    private void readFields() {
+        while (true) {
+            char c = tokener.nextClean();
+            if (c == '}') {
+                return;
+            }
+            if (c == ',') {
+                continue;
+            }
+            if (c == 0) {
+                throw tokener.syntaxError("A JSON object text must end with '}'");
+            }
+            tokener.back();
+            String key = tokener.nextValue().toString();
+            if (tokener.nextClean() != ':') {
+                throw tokener.syntaxError("Expected a ':' after a key");
+            }
+            if ("items".equals(key)) {
+                if (tokener.nextClean() != '[') {
+                    throw tokener.syntaxError("Expected an array of items");
+                }
+                inItems = true;
+                return;
+            }
+            Object value = tokener.nextValue();
+            String text = JSONObject.NULL.equals(value) ? null : value.toString();
+            switch (key) {
+                case "reference":
+                    header.setReference(text);
+                    break;
+                case "cashier":
+                    header.setCashierName(text);
+                    break;
+                case "register":
+                    header.setCashbox(text);
+                    break;
+            }
+            headerRead = header.getReference() != null && header.getCashierName() != null && header.getCashbox() != null;
+        }
+    }
+
+    /**
+     * Reads the next element of the "items" array; after the last one reads
+     * the rest of the document.
+     *
+     * @throws IOException when an item has an invalid value, e.g. an unknown
+     * VAT rate
+     */
+    private SaleLine nextItem() throws IOException {
+        while (inItems) {
+            char c = tokener.nextClean();
+            if (c == ',') {
+                continue;
+            }
+            if (c == ']') {
+                inItems = false;
+                readFields();
+                break;
+            }
+            if (c == 0) {
+                throw tokener.syntaxError("Expected a ']' after items");
+            }
+            tokener.back();
+            Object item = tokener.nextValue();
+            if (!(item instanceof JSONObject)) {
+                throw tokener.syntaxError("Item is not a JSON object");
+            }
+            items++;
+            try {
+                return toSaleLine((JSONObject) item);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Pozycja " + items + ": " + e.getMessage(), e);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import name.prokop.bart.fps.datamodel.Slip;
+import name.prokop.bart.fps.datamodel.SlipStream;
+
+/**
+ * Fetches and decodes slips of a cloud queue ahead of the printer.
+ *
+ * A single background thread pulls the queue in order. While the printer
+ * works on slip N, it fetches slips N+1..N+depth. Once that many slips are
+ * fetched and not yet taken, it stops asking the server, so at most depth
+ * slips are held locally. Each fetched slip is handed to exactly one take()
+ * call. The server removes a slip from the queue when it sends it, so a
+ * slip is never printed twice. A slip that cannot be decoded is handed to
+ * take() as UnreadableSlipException, in queue order, so the caller can
+ * report it as failed. Slips still buffered at close() are logged as not
+ * printed.
+ *
+ * @author Bartłomiej Prokop
+ */
+public class SlipPrefetcher implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(SlipPrefetcher.class.getName());
+    public static final int DEFAULT_DEPTH = 2;
+    private final CloudQueue queue;
+    private final Semaphore free;
+    private final BlockingQueue<Fetched> fetched = new LinkedBlockingQueue<>();
+    private final Thread fetcher;
+    private volatile boolean closed;
+
+    /**
+     * @param queue cloud queue
+     * @param depth maximal number of slips fetched ahead
+     */
+    public SlipPrefetcher(CloudQueue queue, int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth < 1");
+        }
+        this.queue = queue;
+        this.free = new Semaphore(depth);
+        this.fetcher = new Thread(this::fetch, "SlipPrefetcher " + queue.getUrl());
+        this.fetcher.setDaemon(true);
+    }
+
+    /**
+     * Starts fetching.
+     */
+    public void start() {
+        fetcher.start();
+    }
+
+    /**
+     * Waits for the next slip.
+     *
+     * @return next slip in queue order
+     * @throws UnreadableSlipException when the next slip could not be
+     * decoded - it is already gone from the server queue
+     * @throws InterruptedException when the thread is interrupted
+     */
+    public Slip take() throws UnreadableSlipException, InterruptedException {
+        return unwrap(fetched.take());
+    }
+
+    /**
+     * Waits for the next slip at most the given time.
+     *
+     * @param timeout how long to wait
+     * @param unit unit of timeout
+     * @return next slip in queue order or null when none arrived in time
+     * @throws UnreadableSlipException when the next slip could not be
+     * decoded - it is already gone from the server queue
+     * @throws InterruptedException when the thread is interrupted
+     */
+    public Slip poll(long timeout, TimeUnit unit) throws UnreadableSlipException, InterruptedException {
+        Fetched next = fetched.poll(timeout, unit);
+        return next != null ? unwrap(next) : null;
+    }
+
+    /**
+     * @return number of slips fetched and waiting for the printer
+     */
+    public int size() {
+        return fetched.size();
+    }
+
+    /**
+     * Stops fetching.
+     *
+     * @return slips fetched but not taken - they are already gone from the
+     * server queue
+     */
+    public List<Slip> drain() {
+        closed = true;
+        fetcher.interrupt();
+        List<Fetched> left = new ArrayList<>();
+        fetched.drainTo(left);
+        List<Slip> slips = new ArrayList<>();
+        for (Fetched next : left) {
+            if (next.slip != null) {
+                slips.add(next.slip);
+            } else {
+                logger.log(Level.SEVERE, "Nieczytelny paragon " + next.error.getReference() + " pobrany z kolejki - wynik niezgłoszony", next.error);
+            }
+        }
+        return slips;
+    }
+
+    @Override
+    public void close() {
+        for (Slip slip : drain()) {
+            logger.warning("Paragon " + slip.getReference() + " pobrany z kolejki, ale niewydrukowany");
+        }
+    }
+
+    private void fetch() {
+        while (!closed) {
+            try {
+                free.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            boolean handled = false;
+            try (SlipStream stream = queue.take()) {
+                try {
+                    fetched.add(new Fetched(stream.toSlip(), null));
+                } catch (IOException | RuntimeException e) {
+                    // paragon został już zdjęty z kolejki - nie da się go pobrać
+                    // ponownie, take() przekaże błąd do zgłoszenia
+                    logger.log(Level.SEVERE, "Nie można odczytać paragonu " + stream.getReference() + " z " + queue.getUrl(), e);
+                    fetched.add(new Fetched(null, new UnreadableSlipException(stream.getReference(), "Nie można odczytać paragonu " + stream.getReference() + " z " + queue.getUrl(), e)));
+                }
+                handled = true;
+                if (closed) {
+                    // pobrany już po drain()
+                    close();
+                }
+            } catch (UnreadableSlipException e) {
+                fetched.add(new Fetched(null, e));
+                handled = true;
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Błąd zamknięcia połączenia z " + queue.getUrl(), e);
+            } catch (RuntimeException e) {
+                // wątek pobierający musi działać dalej, inaczej take() czeka w nieskończoność
+                logger.log(Level.SEVERE, "Błąd pobierania paragonu z " + queue.getUrl(), e);
+                if (!handled) {
+                    free.release();
+                }
+            }
+        }
+    }
+
+    private Slip unwrap(Fetched next) throws UnreadableSlipException {
+        free.release();
+        if (next.error != null) {
+            throw next.error;
+        }
+        return next.slip;
+    }
+
+    /**
+     * Decoded slip or the reason it could not be decoded.
+     */
+    private static final class Fetched {
+
+        final Slip slip;
+        final UnreadableSlipException error;
+
+        Fetched(Slip slip, UnreadableSlipException error) {
+            this.slip = slip;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import name.prokop.bart.fps.datamodel.SlipStream;
+
+/**
+ * Local on-disk store-and-forward spool of slips.
+ *
+ * Slips are written as JSON files (queue format, see SlipJsonReader) named
+ * {receivedMillis}-{sequence}.json, so that the name order is the arrival
+ * order. Every file is written to a temporary name first and then moved in
+ * place, so a reader never sees half a slip. Any other *.json file dropped
+ * into the directory by a local producer is renamed to the same scheme, using
+ * its modification time. Such producers must write under another name and
+ * rename the file to *.json only once it is complete.
+ *
+ * take() renames the oldest slip to *.printing before handing it out, and
+ * Entry.done() deletes it once printed. A *.printing file found on start
+ * means the process stopped in the middle of a print, so its outcome is
+ * unknown. It is renamed to *.unknown and never printed again
+ * automatically, because a second fiscal receipt cannot be undone.
+ *
+ * Printing from the spool involves no network, so a backlog collected while
+ * the uplink was down drains at printer speed.
+ *
+ * @author Bartłomiej Prokop
+ */
+public class SlipSpool {
+
+    private static final Logger logger = Logger.getLogger(SlipSpool.class.getName());
+    private static final String JSON = ".json";
+    private static final String PRINTING = ".printing";
+    private static final String UNKNOWN = ".unknown";
+    private static final Pattern NAME = Pattern.compile("(\\d{13})-(\\d{6})\\.json");
+    private final Path dir;
+    private final TreeSet<String> ready = new TreeSet<>();
+    private final List<Path> interrupted = new ArrayList<>();
+    private int sequence;
+
+    /**
+     * Opens the spool, creating the directory when needed.
+     *
+     * @param dir spool directory
+     * @throws IOException when the directory cannot be created or read
+     */
+    public SlipSpool(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + PRINTING)) {
+            for (Path file : files) {
+                Path unknown = file.resolveSibling(baseName(file, PRINTING) + UNKNOWN);
+                Files.move(file, unknown, StandardCopyOption.ATOMIC_MOVE);
+                logger.warning("Przerwany wydruk " + file.getFileName() + " - stan nieznany, odłożony jako " + unknown.getFileName());
+                interrupted.add(unknown);
+            }
+        }
+        rescan();
+    }
+
+    /**
+     * Stores a slip.
+     *
+     * @param json slip in queue JSON format; read to the end, not closed
+     * @return spool file
+     * @throws IOException when the slip cannot be stored
+     */
+    public Path put(InputStream json) throws IOException {
+        long received = System.currentTimeMillis();
+        Path tmp = Files.createTempFile(dir, "put", ".tmp");
+        try {
+            Files.copy(json, tmp, StandardCopyOption.REPLACE_EXISTING);
+            return publish(tmp, received);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Stores a slip.
+     *
+     * @param json slip in queue JSON format
+     * @return spool file
+     * @throws IOException when the slip cannot be stored
+     */
+    public Path put(String json) throws IOException {
+        long received = System.currentTimeMillis();
+        Path tmp = Files.createTempFile(dir, "put", ".tmp");
+        try {
+            Files.write(tmp, json.getBytes(StandardCharsets.UTF_8));
+            return publish(tmp, received);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Waits for the oldest slip and reserves it.
+     *
+     * @return slip to print
+     * @throws InterruptedException when the thread is interrupted
+     */
+    public Entry take() throws InterruptedException {
+        Entry entry;
+        while ((entry = poll(1, TimeUnit.SECONDS)) == null) {
+        }
+        return entry;
+    }
+
+    /**
+     * Waits for the oldest slip at most the given time and reserves it. Files
+     * dropped into the directory by other processes are noticed within a
+     * second.
+     *
+     * @param timeout how long to wait
+     * @param unit unit of timeout
+     * @return slip to print or null when there was none
+     * @throws InterruptedException when the thread is interrupted
+     */
+    public synchronized Entry poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            if (ready.isEmpty()) {
+                rescan();
+            }
+            while (!ready.isEmpty()) {
+                String name = ready.pollFirst();
+                Path file = dir.resolve(name);
+                Path printing = dir.resolve(baseName(file, JSON) + PRINTING);
+                try {
+                    Files.move(file, printing, StandardCopyOption.ATOMIC_MOVE);
+                    return new Entry(printing, receivedTime(name));
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Plik " + name + " zniknął ze spoolera", e);
+                }
+            }
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, Math.min(left, TimeUnit.SECONDS.toNanos(1)));
+        }
+    }
+
+    /**
+     * @return number of slips waiting to be printed
+     */
+    public synchronized int getDepth() {
+        rescan();
+        return ready.size();
+    }
+
+    /**
+     * @return how long the oldest waiting slip has been in the spool, in
+     * milliseconds; 0 when the spool is empty
+     */
+    public synchronized long getOldestAge() {
+        rescan();
+        return ready.isEmpty() ? 0 : Math.max(0, System.currentTimeMillis() - receivedTime(ready.first()));
+    }
+
+    /**
+     * @return slips whose print was interrupted by a previous run (*.unknown)
+     */
+    public List<Path> getInterrupted() {
+        return Collections.unmodifiableList(interrupted);
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    @Override
+    public String toString() {
+        return "spool " + dir + ": " + getDepth() + " slips, oldest " + TimeUnit.MILLISECONDS.toSeconds(getOldestAge()) + " s";
+    }
+
+    private synchronized Path publish(Path tmp, long received) throws IOException {
+        String name = String.format("%013d-%06d%s", received, sequence++ % 1000000, JSON);
+        Path file = dir.resolve(name);
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        ready.add(name);
+        notifyAll();
+        return file;
+    }
+
+    /**
+     * Picks up files added by other processes.
+     */
+    private void rescan() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + JSON)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!NAME.matcher(name).matches()) {
+                    try {
+                        long received = Files.getLastModifiedTime(file).toMillis();
+                        Path target = dir.resolve(String.format("%013d-%06d%s", received, sequence++ % 1000000, JSON));
+                        Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+                        name = target.getFileName().toString();
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Nie można przyjąć pliku " + file, e);
+                        continue;
+                    }
+                }
+                ready.add(name);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Nie można odczytać katalogu " + dir, e);
+        }
+    }
+
+    private static long receivedTime(String name) {
+        Matcher m = NAME.matcher(name);
+        return m.matches() ? Long.parseLong(m.group(1)) : 0;
+    }
+
+    private static String baseName(Path file, String suffix) {
+        String name = file.getFileName().toString();
+        return name.substring(0, name.length() - suffix.length());
+    }
+
+    /**
+     * Slip reserved for printing.
+     */
+    public static class Entry {
+
+        private final Path file;
+        private final long received;
+
+        Entry(Path file, long received) {
+            this.file = file;
+            this.received = received;
+        }
+
+        /**
+         * @return reserved spool file
+         */
+        public Path getFile() {
+            return file;
+        }
+
+        /**
+         * @return when the slip entered the spool, System.currentTimeMillis()
+         */
+        public long getReceived() {
+            return received;
+        }
+
+        /**
+         * @return reader of the slip; the caller closes it
+         * @throws IOException when the file cannot be read
+         */
+        public SlipStream open() throws IOException {
+            return new SlipJsonReader(Files.newInputStream(file));
+        }
+
+        /**
+         * Removes the slip from the spool - call once the print was attempted,
+         * successfully or not.
+         *
+         * @throws IOException when the file cannot be deleted
+         */
+        public void done() throws IOException {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Reports the outcome of printed jobs back to the queue server.
+ *
+ * report() only adds the outcome to a local buffer, so it never delays the
+ * print path. A background thread waits up to LINGER milliseconds for more
+ * outcomes, or until MAX_BATCH have collected. It then posts them all as one
+ * JSON array, so a busy printer sends one request per batch rather than one
+ * per slip. A failed post is retried with exponential back-off and the
+ * outcomes stay queued until the server accepts them. If the server stays
+ * unreachable, the oldest outcomes are dropped beyond MAX_PENDING. With a
+ * spool directory every outcome is also kept in a file until the server
+ * accepts it, so outcomes collected while offline survive a restart.
+ *
+ * Every outcome carries: reference, status ("printed" or "failed"), error,
+ * errorCode (error number reported by the printer), received (when the slip
+ * was fetched), started, waitMs (from fetch to print start) and printMs.
+ *
+ * @author Bartłomiej Prokop
+ */
+public class StatusReporter implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(StatusReporter.class.getName());
+    public static final int MAX_BATCH = 50;
+    public static final int MAX_PENDING = 1000;
+    public static final long LINGER = 1000;
+    public static final long MAX_BACKOFF = 60 * 1000;
+    private static final int TIMEOUT = 15 * 1000;
+    private final URL url;
+    private final Deque<JSONObject> pending = new ArrayDeque<>();
+    private final Map<JSONObject, Path> files = new IdentityHashMap<>();
+    private final Path dir;
+    private final Thread sender;
+    private boolean closed;
+    private boolean flushing;
+    private long dropped;
+    private int sequence;
+
+    /**
+     * @param statusUrl endpoint accepting POSTed JSON arrays of outcomes
+     * @throws IOException when the URL is invalid
+     */
+    public StatusReporter(String statusUrl) throws IOException {
+        this(statusUrl, null);
+    }
+
+    /**
+     * @param statusUrl endpoint accepting POSTed JSON arrays of outcomes
+     * @param dir directory keeping outcomes until they are accepted, null to
+     * keep them in memory only
+     * @throws IOException when the URL is invalid or the directory cannot be
+     * read
+     */
+    public StatusReporter(String statusUrl, Path dir) throws IOException {
+        this.url = new URL(statusUrl);
+        this.dir = dir;
+        if (dir != null) {
+            Files.createDirectories(dir);
+            List<Path> saved = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.json")) {
+                stream.forEach(saved::add);
+            }
+            Collections.sort(saved);
+            for (Path file : saved) {
+                try {
+                    JSONObject status = new JSONObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+                    pending.add(status);
+                    files.put(status, file);
+                } catch (JSONException e) {
+                    logger.warning("Uszkodzony status " + file + " - pominięty");
+                    Files.delete(file);
+                }
+            }
+        }
+        this.sender = new Thread(this::send, "StatusReporter " + statusUrl);
+        this.sender.setDaemon(true);
+        this.sender.start();
+    }
+
+    /**
+     * Queues the outcome of a job; returns at once.
+     *
+     * @param result job outcome
+     * @param received when the job was fetched from the queue,
+     * System.currentTimeMillis()
+     */
+    public void report(PrintResult result, long received) {
+        JSONObject status = toJson(result, received);
+        synchronized (pending) {
+            if (closed) {
+                logger.warning("Status " + status + " zgłoszony po zamknięciu");
+                return;
+            }
+            pending.add(status);
+            save(status);
+            while (pending.size() > MAX_PENDING) {
+                remove(pending.poll());
+                dropped++;
+            }
+            pending.notifyAll();
+        }
+    }
+
+    /**
+     * @param result job outcome
+     * @param received when the job was received, System.currentTimeMillis()
+     * @return outcome as sent to the server
+     */
+    static JSONObject toJson(PrintResult result, long received) {
+        JSONObject status = new JSONObject();
+        status.put("reference", result.getReference());
+        status.put("status", result.isSuccess() ? "printed" : "failed");
+        if (!result.isSuccess()) {
+            status.put("error", result.getErrorMessage());
+            if (result.getError() instanceof FiscalPrinterException) {
+                status.putOpt("errorCode", ((FiscalPrinterException) result.getError()).getErrorCode());
+            }
+        }
+        status.put("received", received);
+        status.put("started", result.getStartTime());
+        status.put("waitMs", Math.max(0, result.getStartTime() - received));
+        status.put("printMs", result.getDuration());
+        return status;
+    }
+
+    /**
+     * @return number of outcomes not yet accepted by the server
+     */
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * @return number of outcomes dropped because the buffer overflowed
+     */
+    public long getDroppedCount() {
+        synchronized (pending) {
+            return dropped;
+        }
+    }
+
+    /**
+     * Sends what is pending, waiting for it at most the given time.
+     *
+     * @param timeout maximal wait in milliseconds
+     * @return true when everything was sent
+     * @throws InterruptedException when the thread is interrupted
+     */
+    public boolean flush(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        synchronized (pending) {
+            flushing = !pending.isEmpty();
+            pending.notifyAll();
+            while (!pending.isEmpty()) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(pending, left);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Sends the pending outcomes (waiting up to 5 s) and stops the sender.
+     */
+    @Override
+    public void close() {
+        try {
+            if (!flush(5000)) {
+                logger.warning("Nie wysłano " + getPendingCount() + " statusów wydruku do " + url);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (pending) {
+            closed = true;
+            pending.notifyAll();
+        }
+        sender.interrupt();
+    }
+
+    private void send() {
+        long backoff = 0;
+        try {
+            while (true) {
+                List<JSONObject> batch = nextBatch();
+                if (batch == null) {
+                    return;
+                }
+                try {
+                    post(batch);
+                    backoff = 0;
+                    synchronized (pending) {
+                        // część wysłanych mogła już wypaść przy przepełnieniu
+                        for (JSONObject status : batch) {
+                            if (pending.removeFirstOccurrence(status)) {
+                                remove(status);
+                            }
+                        }
+                        if (pending.isEmpty()) {
+                            flushing = false;
+                        }
+                        pending.notifyAll();
+                    }
+                } catch (IOException e) {
+                    backoff = backoff == 0 ? LINGER : Math.min(backoff * 2, MAX_BACKOFF);
+                    long delay = backoff + ThreadLocalRandom.current().nextLong(backoff / 4 + 1);
+                    logger.log(Level.WARNING, "Błąd wysyłania statusów do " + url + ", ponowienie za " + delay + " ms: " + e);
+                    Thread.sleep(delay);
+                }
+            }
+        } catch (InterruptedException e) {
+            // koniec pracy
+        }
+    }
+
+    /**
+     * Waits for the first outcome, then up to LINGER for a full batch.
+     *
+     * @return copy of the oldest outcomes (still kept in the queue until
+     * accepted) or null after close()
+     */
+    private List<JSONObject> nextBatch() throws InterruptedException {
+        synchronized (pending) {
+            while (pending.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+                pending.wait();
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LINGER);
+            long left;
+            while (pending.size() < MAX_BATCH && !closed && !flushing && (left = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(pending, left);
+                if (pending.isEmpty()) {
+                    // flush() albo przepełnienie - nic do wysłania
+                    break;
+                }
+            }
+            List<JSONObject> batch = new ArrayList<>(Math.min(pending.size(), MAX_BATCH));
+            for (JSONObject status : pending) {
+                if (batch.size() == MAX_BATCH) {
+                    break;
+                }
+                batch.add(status);
+            }
+            return batch.isEmpty() ? nextBatch() : batch;
+        }
+    }
+
+    private void save(JSONObject status) {
+        if (dir == null) {
+            return;
+        }
+        try {
+            Path tmp = Files.createTempFile(dir, "status", ".tmp");
+            Files.write(tmp, status.toString().getBytes(StandardCharsets.UTF_8));
+            Path file = dir.resolve(String.format("%013d-%06d.json", System.currentTimeMillis(), sequence++ % 1000000));
+            files.put(status, Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Nie można zapisać statusu w " + dir, e);
+        }
+    }
+
+    private void remove(JSONObject status) {
+        Path file = files.remove(status);
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Nie można usunąć " + file, e);
+            }
+        }
+    }
+
+    private void post(List<JSONObject> batch) throws IOException {
+        byte[] body = new JSONArray(batch).toString().getBytes(StandardCharsets.UTF_8);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(TIMEOUT);
+        conn.setReadTimeout(TIMEOUT);
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(body.length);
+        conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(body);
+        }
+        int code = conn.getResponseCode();
+        InputStream error = conn.getErrorStream();
+        try (InputStream in = error != null ? error : conn.getInputStream()) {
+            byte[] buf = new byte[512];
+            while (in.read(buf) >= 0) {
+            }
+        }
+        if (code / 100 != 2) {
+            throw new IOException("HTTP " + code + " " + conn.getResponseMessage());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps;
+
+import java.io.IOException;
+
+/**
+ * A slip was removed from a cloud queue but could not be decoded. It cannot
+ * be fetched again, so the caller should report it as failed.
+ *
+ * @author Bartłomiej Prokop
+ */
+public class UnreadableSlipException extends IOException {
+
+    private final String reference;
+
+    /**
+     * @param reference slip reference or null when it could not be read
+     * @param msg the detail message
+     * @param cause decoding error
+     */
+    public UnreadableSlipException(String reference, String msg, Throwable cause) {
+        super(msg, cause);
+        this.reference = reference;
+    }
+
+    /**
+     * @return slip reference or null when it could not be read
+     */
+    public String getReference() {
+        return reference;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps.comm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Bufor do składania całej ramki (prefiks, treść, suma kontrolna, sufiks)
+ * przed wysłaniem. Ramka trafia do portu jednym wywołaniem write() i flush() -
+ * na konwerterach USB-RS232 każde osobne write() może oznaczać osobną
+ * transakcję USB. Bufor jest wielokrotnego użytku (reset()).
+ *
+ * @author Bartłomiej Prokop
+ */
+public class FrameBuilder {
+
+    private byte[] data = new byte[256];
+    private int length;
+
+    /**
+     * Rozpoczyna nową ramkę.
+     *
+     * @return ten bufor
+     */
+    public FrameBuilder reset() {
+        length = 0;
+        return this;
+    }
+
+    public FrameBuilder append(int b) {
+        ensureCapacity(length + 1);
+        data[length++] = (byte) b;
+        return this;
+    }
+
+    public FrameBuilder append(byte[] b) {
+        return append(b, 0, b.length);
+    }
+
+    public FrameBuilder append(byte[] b, int off, int len) {
+        ensureCapacity(length + len);
+        System.arraycopy(b, off, data, length, len);
+        length += len;
+        return this;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return kopia zawartości ramki
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(data, length);
+    }
+
+    /**
+     * Wysyła ramkę jednym write() i wykonuje flush().
+     *
+     * @param out strumień wyjściowy
+     * @throws IOException w przypadku błędu transmisji
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(data, 0, length);
+        out.flush();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, capacity));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps.comm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Kanał w pamięci, pozwalający uruchamiać sterowniki bez urządzenia. Po
+ * stronie sterownika zachowuje się jak port szeregowy, po drugiej stronie
+ * (getDeviceInputStream(), getDeviceOutputStream()) pracuje symulator
+ * drukarki. Kanały są rozróżniane nazwą - adres <CODE>loop:nazwa</CODE>.
+ *
+ * @author Bartłomiej Prokop
+ */
+public class LoopbackTransport implements Transport {
+
+    private static final Map<String, LoopbackTransport> transports = new HashMap<>();
+    private final String name;
+    private final ReceiveBuffer deviceBuffer = new ReceiveBuffer();
+    private final OutputStream hostOutput = new HostOutput();
+    private final OutputStream deviceOutput = new DeviceOutput();
+    private ReceiveBuffer hostBuffer;
+    private volatile boolean cts = true;
+
+    private LoopbackTransport(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Zwraca kanał o podanej nazwie, tworząc go w razie potrzeby.
+     *
+     * @param name nazwa kanału
+     * @return kanał
+     */
+    public static LoopbackTransport get(String name) {
+        synchronized (transports) {
+            LoopbackTransport transport = transports.get(name);
+            if (transport == null) {
+                transport = new LoopbackTransport(name);
+                transports.put(name, transport);
+            }
+            return transport;
+        }
+    }
+
+    @Override
+    public synchronized void open(ReceiveBuffer receiveBuffer) throws IOException {
+        hostBuffer = receiveBuffer;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return hostOutput;
+    }
+
+    @Override
+    public boolean isCTS() {
+        return cts;
+    }
+
+    /**
+     * Ustawia stan linii CTS widziany przez sterownik.
+     *
+     * @param cts stan linii
+     */
+    public void setCTS(boolean cts) {
+        this.cts = cts;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (hostBuffer != null) {
+            hostBuffer.close();
+        }
+        hostBuffer = null;
+    }
+
+    @Override
+    public String getName() {
+        return "loop:" + name;
+    }
+
+    /**
+     * @return strumień bajtów wysłanych przez sterownik
+     */
+    public InputStream getDeviceInputStream() {
+        return deviceBuffer.getInputStream();
+    }
+
+    /**
+     * @return bufor bajtów wysłanych przez sterownik
+     */
+    public ReceiveBuffer getDeviceReceiveBuffer() {
+        return deviceBuffer;
+    }
+
+    /**
+     * @return strumień do wysyłania odpowiedzi do sterownika; dane wysłane,
+     * gdy kanał nie jest otwarty, są tracone
+     */
+    public OutputStream getDeviceOutputStream() {
+        return deviceOutput;
+    }
+
+    private class HostOutput extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (LoopbackTransport.this) {
+                if (hostBuffer == null) {
+                    throw new IOException("Kanał " + getName() + " zamknięty");
+                }
+            }
+            deviceBuffer.feed(b, off, len);
+        }
+    }
+
+    private class DeviceOutput extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ReceiveBuffer buffer;
+            synchronized (LoopbackTransport.this) {
+                buffer = hostBuffer;
+            }
+            if (buffer != null) {
+                buffer.feed(b, off, len);
+            }
+        }
+    }
+}
@@ -0,0 +1,535 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps.comm;
+
+import gnu.io.SerialPort;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import name.prokop.bart.fps.FiscalPrinterException;
+
+/**
+ * Sesja komunikacyjna z drukarką fiskalną. Port (kanał - patrz Transports) jest
+ * otwierany przy
+ * pierwszym użyciu i - jeśli ustawiono czas bezczynności - pozostaje otwarty
+ * pomiędzy kolejnymi wywołaniami sterownika. Przed ponownym użyciem otwartego
+ * portu wykonywany jest tani test stanu drukarki (StatusProbe). Port jest
+ * zamykany po upływie czasu bezczynności albo natychmiast po błędzie
+ * wejścia/wyjścia.
+ *
+ * Czas bezczynności (w milisekundach) ustawia się właściwością systemową
+ * <CODE>name.prokop.bart.fps.session.idle</CODE>. Wartość 0 (domyślna) oznacza
+ * dotychczasowe zachowanie - zamknięcie portu po każdym wywołaniu.
+ *
+ * Odbiór danych odbywa się zdarzeniowo - odebrane bajty trafiają do bufora
+ * odbiorczego (getReceiveBuffer()), na którym sterownik czeka z limitem czasu,
+ * zamiast odpytywać port.
+ *
+ * Dla danego portu istnieje jedna sesja (getSession), współdzielona przez
+ * wszystkie obiekty sterowników. Pomiędzy open() i release() sesja należy
+ * wyłącznie do jednego wątku.
+ *
+ * @author Bartłomiej Prokop
+ */
+public class PortSession {
+
+    /**
+     * Tani test, czy drukarka na otwartym porcie nadal odpowiada.
+     */
+    public interface StatusProbe {
+
+        boolean isAlive(PortSession session) throws IOException;
+    }
+
+    public static final String IDLE_TIMEOUT_PROPERTY = "name.prokop.bart.fps.session.idle";
+    /**
+     * Przerwa (w czasach transmisji znaku), po której łącze uznaje się za
+     * ciche przy opróżnianiu bufora odbiorczego - patrz flushInput().
+     */
+    public static final String QUIET_CHARS_PROPERTY = "name.prokop.bart.fps.session.quietChars";
+    private static final int quietChars = Integer.getInteger(QUIET_CHARS_PROPERTY, 4);
+    private static final Logger logger = Logger.getLogger(PortSession.class.getName());
+    private static final Timer idleTimer = new Timer("PortSession idle timer", true);
+    private static final Map<String, PortSession> sessions = new HashMap<>();
+    private static volatile long defaultIdleTimeout = Long.getLong(IDLE_TIMEOUT_PROPERTY, 0L);
+    private final String portName;
+    private final ReentrantLock owner = new ReentrantLock();
+    private int baudRate;
+    private int dataBits;
+    private int stopBits;
+    private int parity;
+    private int flowControl;
+    private StatusProbe statusProbe;
+    private long idleTimeout = -1;
+    private Transport transport;
+    private ReceiveBuffer receiveBuffer;
+    private OutputStream outputStream;
+    private TimerTask closer;
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private boolean pendingFrame;
+    private long resyncCount;
+    private long resyncRounds;
+    private long resyncFailures;
+    private int lastResyncRounds;
+    private int maxResyncRounds;
+    private boolean reused;
+    private volatile boolean broken;
+    private final Map<String, Object> attributes = new HashMap<>();
+
+    private PortSession(String portName) {
+        this.portName = portName;
+    }
+
+    /**
+     * Zwraca sesję dla danego portu, tworząc ją w razie potrzeby. Jeśli
+     * parametry transmisji różnią się od używanych dotychczas, port zostanie
+     * otwarty ponownie z nowymi parametrami.
+     *
+     * @param portName nazwa portu szeregowego albo adres drukarki (patrz
+     * Transports)
+     * @param baudRate prędkość transmisji
+     * @param dataBits SerialPort.DATABITS_*
+     * @param stopBits SerialPort.STOPBITS_*
+     * @param parity SerialPort.PARITY_*
+     * @param flowControl SerialPort.FLOWCONTROL_*
+     * @return sesja portu
+     */
+    public static PortSession getSession(String portName, int baudRate, int dataBits, int stopBits, int parity, int flowControl) {
+        PortSession session;
+        synchronized (sessions) {
+            session = sessions.get(portName);
+            if (session == null) {
+                session = new PortSession(portName);
+                sessions.put(portName, session);
+            }
+        }
+        session.configure(baudRate, dataBits, stopBits, parity, flowControl);
+        return session;
+    }
+
+    private synchronized void configure(int baudRate, int dataBits, int stopBits, int parity, int flowControl) {
+        if (this.baudRate == baudRate && this.dataBits == dataBits && this.stopBits == stopBits
+                && this.parity == parity && this.flowControl == flowControl) {
+            return;
+        }
+        this.baudRate = baudRate;
+        this.dataBits = dataBits;
+        this.stopBits = stopBits;
+        this.parity = parity;
+        this.flowControl = flowControl;
+        // zmiana parametrów - port zostanie otwarty ponownie przy open()
+        broken = true;
+    }
+
+    public static long getDefaultIdleTimeout() {
+        return defaultIdleTimeout;
+    }
+
+    /**
+     * Ustawia domyślny czas bezczynności dla wszystkich sesji, które nie mają
+     * ustawionego własnego.
+     *
+     * @param idleTimeout czas w milisekundach, 0 - zamykaj port po każdym
+     * wywołaniu
+     */
+    public static void setDefaultIdleTimeout(long idleTimeout) {
+        defaultIdleTimeout = idleTimeout;
+    }
+
+    public synchronized long getIdleTimeout() {
+        return idleTimeout >= 0 ? idleTimeout : defaultIdleTimeout;
+    }
+
+    public synchronized void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public synchronized void setStatusProbe(StatusProbe statusProbe) {
+        this.statusProbe = statusProbe;
+    }
+
+    /**
+     * Ustawia test łącza, jeśli sesja jeszcze go nie ma. Sterowniki różnych
+     * typów drukarek mogą współdzielić sesję tego samego portu - obowiązuje
+     * test sterownika utworzonego jako pierwszy, a nie ostatni.
+     *
+     * @param statusProbe test łącza
+     */
+    public synchronized void setStatusProbeIfAbsent(StatusProbe statusProbe) {
+        if (this.statusProbe == null) {
+            this.statusProbe = statusProbe;
+        }
+    }
+
+    public String getPortName() {
+        return portName;
+    }
+
+    /**
+     * Przygotowuje port do pracy. Jeśli port jest już otwarty, sprawdza stan
+     * drukarki i w razie braku odpowiedzi otwiera port ponownie. Każde
+     * wywołanie open() musi zostać zakończone wywołaniem release(), również
+     * wtedy, gdy open() zgłosi wyjątek.
+     *
+     * @throws FiscalPrinterException gdy nie można otworzyć portu
+     */
+    public void open() throws FiscalPrinterException {
+        owner.lock();
+        doOpen();
+    }
+
+    private synchronized void doOpen() throws FiscalPrinterException {
+        cancelCloser();
+        if (owner.getHoldCount() > 1 && transport != null && !broken) {
+            // zagnieżdżone użycie w ramach tego samego wątku
+            reused = true;
+            return;
+        }
+        if (transport != null && !broken && !receiveBuffer.isClosed() && probe()) {
+            reused = true;
+            return;
+        }
+        close();
+        connect();
+        reused = false;
+    }
+
+    /**
+     * Kończy użycie portu przez sterownik. Port jest zamykany natychmiast
+     * (brak sesji lub błąd transmisji) albo po upływie czasu bezczynności.
+     */
+    public void release() {
+        try {
+            doRelease();
+        } finally {
+            if (owner.isHeldByCurrentThread()) {
+                owner.unlock();
+            }
+        }
+    }
+
+    private synchronized void doRelease() {
+        cancelCloser();
+        if (transport == null || owner.getHoldCount() > 1) {
+            return;
+        }
+        long timeout = getIdleTimeout();
+        if (broken || timeout <= 0) {
+            close();
+            return;
+        }
+        closer = new TimerTask() {
+            @Override
+            public void run() {
+                closeIdle(this);
+            }
+        };
+        idleTimer.schedule(closer, timeout);
+    }
+
+    /**
+     * Zamyka port, niezależnie od ustawień sesji.
+     */
+    public synchronized void close() {
+        cancelCloser();
+        if (transport != null) {
+            transport.close();
+            receiveBuffer.close();
+            logger.fine("Port " + portName + " zamknięty, ramki/zapisy: " + frames + "/" + writes);
+        }
+        transport = null;
+        receiveBuffer = null;
+        outputStream = null;
+        broken = false;
+        reused = false;
+        attributes.clear();
+    }
+
+    /**
+     * @return true, jeśli ostatnie open() użyło portu otwartego wcześniej
+     */
+    public synchronized boolean isReused() {
+        return reused;
+    }
+
+    public synchronized boolean isOpen() {
+        return transport != null;
+    }
+
+    /**
+     * Zwraca obiekt sterownika związany z bieżącym połączeniem, tworząc go w
+     * razie potrzeby. Obiekty są usuwane przy zamknięciu portu, więc nadają się
+     * do zapamiętania stanu drukarki, który jest pewny tylko, dopóki
+     * połączenie trwa (np. ostatnio wysłana konfiguracja).
+     *
+     * @param <T> typ obiektu
+     * @param key klucz
+     * @param factory tworzy obiekt przy pierwszym użyciu w danym połączeniu
+     * @return obiekt związany z połączeniem
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> T getAttribute(String key, Supplier<T> factory) {
+        return (T) attributes.computeIfAbsent(key, k -> factory.get());
+    }
+
+    /**
+     * Oznacza sesję jako uszkodzoną - port zostanie zamknięty przy release().
+     */
+    public void invalidate() {
+        broken = true;
+    }
+
+    /**
+     * @return stan linii CTS otwartego portu (true dla kanałów bez linii
+     * sterujących)
+     */
+    public synchronized boolean isCTS() {
+        return transport != null && transport.isCTS();
+    }
+
+    /**
+     * @return kanał otwartego portu
+     */
+    public synchronized Transport getTransport() {
+        return transport;
+    }
+
+    public synchronized InputStream getInputStream() {
+        return receiveBuffer != null ? receiveBuffer.getInputStream() : null;
+    }
+
+    /**
+     * @return bufor odbiorczy otwartego portu
+     */
+    public synchronized ReceiveBuffer getReceiveBuffer() {
+        return receiveBuffer;
+    }
+
+    public synchronized OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * @return czas transmisji jednego znaku w nanosekundach, wyliczony z
+     * parametrów portu
+     */
+    public synchronized long getCharacterTime() {
+        double bits = 1 + dataBits + (parity != SerialPort.PARITY_NONE ? 1 : 0)
+                + (stopBits == SerialPort.STOPBITS_2 ? 2 : stopBits == SerialPort.STOPBITS_1_5 ? 1.5 : 1);
+        return (long) (bits * 1000000000L / (baudRate > 0 ? baudRate : 9600));
+    }
+
+    /**
+     * @return przerwa, po której łącze uznaje się za ciche, w nanosekundach
+     */
+    public long getQuietGap() {
+        return quietChars * getCharacterTime();
+    }
+
+    /**
+     * Odrzuca dane odebrane z portu, czekając aż łącze ucichnie na czas
+     * getQuietGap(). Jeśli nic nie oczekuje na odczyt, wraca natychmiast.
+     *
+     * @return liczba odrzuconych bajtów
+     */
+    public int flushInput() {
+        ReceiveBuffer buffer = getReceiveBuffer();
+        return buffer != null ? buffer.drain(getQuietGap()) : 0;
+    }
+
+    /**
+     * @return liczba ramek wysłanych w tej sesji (ramka - dane zakończone
+     * flush())
+     */
+    public long getFrameCount() {
+        return frames.get();
+    }
+
+    /**
+     * @return liczba wywołań write() na porcie w tej sesji
+     */
+    public long getWriteCount() {
+        return writes.get();
+    }
+
+    /**
+     * @return stosunek liczby ramek do liczby zapisów; 1.0 oznacza, że każda
+     * ramka trafia do portu jednym write()
+     */
+    public double getFrameWriteRatio() {
+        long w = writes.get();
+        return w == 0 ? 1.0 : (double) frames.get() / w;
+    }
+
+    /**
+     * Zapisuje wynik synchronizacji łącza z drukarką. Duża liczba prób
+     * wskazuje na zakłócenia na linii.
+     *
+     * @param rounds liczba prób
+     * @param success czy synchronizacja się udała
+     */
+    public synchronized void recordResync(int rounds, boolean success) {
+        resyncCount++;
+        resyncRounds += rounds;
+        lastResyncRounds = rounds;
+        maxResyncRounds = Math.max(maxResyncRounds, rounds);
+        if (!success) {
+            resyncFailures++;
+        }
+        if (!success || rounds > 1) {
+            logger.info("Synchronizacja " + portName + ": prób " + rounds + (success ? "" : " - bez odpowiedzi")
+                    + " (średnio " + String.format("%.2f", getAverageResyncRounds()) + ", maks. " + maxResyncRounds + ")");
+        }
+    }
+
+    public synchronized long getResyncCount() {
+        return resyncCount;
+    }
+
+    public synchronized long getResyncFailures() {
+        return resyncFailures;
+    }
+
+    public synchronized int getLastResyncRounds() {
+        return lastResyncRounds;
+    }
+
+    public synchronized int getMaxResyncRounds() {
+        return maxResyncRounds;
+    }
+
+    public synchronized double getAverageResyncRounds() {
+        return resyncCount == 0 ? 0.0 : (double) resyncRounds / resyncCount;
+    }
+
+    /**
+     * Wysyła jeden bajt zapytania o status i czeka na dowolny bajt odpowiedzi.
+     * Odpowiedź jest konsumowana.
+     *
+     * @param request bajt zapytania (np. DLE)
+     * @param timeout czas oczekiwania w milisekundach
+     * @return true, jeśli drukarka odpowiedziała
+     * @throws IOException w przypadku błędu transmisji
+     */
+    public boolean probe(int request, int timeout) throws IOException {
+        ReceiveBuffer in = getReceiveBuffer();
+        OutputStream out = getOutputStream();
+        in.clear();
+        out.write(request);
+        out.flush();
+        return in.read(timeout) >= 0;
+    }
+
+    private boolean probe() {
+        if (statusProbe == null) {
+            return true;
+        }
+        try {
+            if (statusProbe.isAlive(this)) {
+                return true;
+            }
+            logger.warning("Drukarka na porcie " + portName + " nie odpowiada - ponowne otwarcie portu");
+        } catch (IOException e) {
+            logger.warning("Błąd testu portu " + portName + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    private void connect() throws FiscalPrinterException {
+        ReceiveBuffer buffer = new ReceiveBuffer();
+        Transport t;
+        try {
+            t = Transports.create(portName, baudRate, dataBits, stopBits, parity, flowControl);
+            t.open(buffer);
+        } catch (IOException e) {
+            throw new FiscalPrinterException("Nie można otworzyć portu: " + e.getMessage());
+        }
+        outputStream = new SessionOutputStream(t.getOutputStream());
+        receiveBuffer = buffer;
+        transport = t;
+        broken = false;
+        logger.fine("Port " + t.getName() + " otwarty");
+    }
+
+    private synchronized void closeIdle(TimerTask task) {
+        if (closer == task) {
+            closer = null;
+            close();
+        }
+    }
+
+    private void cancelCloser() {
+        if (closer != null) {
+            closer.cancel();
+            closer = null;
+        }
+    }
+
+    private class SessionOutputStream extends FilterOutputStream {
+
+        SessionOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            writes.incrementAndGet();
+            pendingFrame = true;
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                invalidate();
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writes.incrementAndGet();
+            pendingFrame = true;
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                invalidate();
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (pendingFrame) {
+                frames.incrementAndGet();
+                pendingFrame = false;
+            }
+            try {
+                out.flush();
+            } catch (IOException e) {
+                invalidate();
+                throw e;
+            }
+        }
+    }
+}
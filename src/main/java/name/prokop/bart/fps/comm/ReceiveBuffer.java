@@ -0,0 +1,375 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps.comm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bufor odbiorczy portu. Bajty odebrane z urządzenia są dopisywane przez wątek
+ * odbiorczy (zdarzenie DATA_AVAILABLE portu szeregowego albo wątek czytający
+ * strumień - pump()), a sterownik czeka na nie bez odpytywania portu.
+ * Wszystkie czasy oczekiwania są liczone w milisekundach od chwili wywołania,
+ * niezależnie od tego, jak często wątek jest budzony.
+ *
+ * @author Bartłomiej Prokop
+ */
+public class ReceiveBuffer {
+
+    private byte[] data = new byte[1024];
+    private int head;
+    private int count;
+    private boolean closed;
+    private IOException failure;
+    private final InputStream inputStream = new Input();
+
+    /**
+     * Zwraca bufor, z którego czyta podany strumień. Jeśli strumień nie
+     * pochodzi z bufora, tworzony jest nowy bufor zasilany przez osobny wątek
+     * czytający strumień.
+     *
+     * @param in strumień wejściowy
+     * @return bufor odbiorczy
+     */
+    public static ReceiveBuffer of(InputStream in) {
+        if (in instanceof Input) {
+            return ((Input) in).owner();
+        }
+        return pump(in, "ReceiveBuffer pump");
+    }
+
+    /**
+     * Tworzy bufor zasilany przez wątek (daemon) czytający podany strumień aż
+     * do jego końca albo błędu.
+     *
+     * @param in strumień wejściowy
+     * @param name nazwa wątku
+     * @return bufor odbiorczy
+     */
+    public static ReceiveBuffer pump(InputStream in, String name) {
+        return new ReceiveBuffer().pumpFrom(in, name);
+    }
+
+    /**
+     * Uruchamia wątek (daemon) przepisujący do bufora dane z podanego
+     * strumienia aż do jego końca albo błędu.
+     *
+     * @param in strumień wejściowy
+     * @param name nazwa wątku
+     * @return ten bufor
+     */
+    public ReceiveBuffer pumpFrom(final InputStream in, String name) {
+        Thread t = new Thread(() -> {
+            byte[] b = new byte[256];
+            try {
+                int n;
+                while ((n = in.read(b)) >= 0) {
+                    feed(b, 0, n);
+                }
+                close();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }, name);
+        t.setDaemon(true);
+        t.start();
+        return this;
+    }
+
+    /**
+     * Dopisuje odebrane bajty i budzi oczekujące wątki.
+     *
+     * @param b bajty
+     * @param off początek
+     * @param len liczba bajtów
+     */
+    public synchronized void feed(byte[] b, int off, int len) {
+        if (len <= 0) {
+            return;
+        }
+        if (count + len > data.length) {
+            byte[] n = new byte[Math.max(data.length * 2, count + len)];
+            int c = count;
+            copyOut(n, 0, c);
+            data = n;
+            head = 0;
+            count = c;
+        }
+        int tail = (head + count) % data.length;
+        int first = Math.min(len, data.length - tail);
+        System.arraycopy(b, off, data, tail, first);
+        System.arraycopy(b, off + first, data, 0, len - first);
+        count += len;
+        notifyAll();
+    }
+
+    /**
+     * Zgłasza błąd odbioru - będzie rzucany przy każdym kolejnym odczycie, gdy
+     * w buforze zabraknie danych.
+     *
+     * @param e błąd
+     */
+    public synchronized void fail(IOException e) {
+        failure = e;
+        notifyAll();
+    }
+
+    /**
+     * Zamyka bufor - oczekujące wątki są budzone, a odczyt pustego bufora
+     * zwraca koniec strumienia.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * @return true, jeśli kanał zasilający bufor został zamknięty albo
+     * zgłosił błąd
+     */
+    public synchronized boolean isClosed() {
+        return closed || failure != null;
+    }
+
+    public synchronized int available() throws IOException {
+        if (count == 0) {
+            checkFailure();
+        }
+        return count;
+    }
+
+    /**
+     * Odrzuca odebrane bajty aż do chwili, gdy przez podany czas nie nadejdzie
+     * żaden nowy bajt. Jeśli bufor jest pusty, wraca natychmiast.
+     *
+     * @param quietNanos czas ciszy na łączu w nanosekundach
+     * @return liczba odrzuconych bajtów
+     */
+    public synchronized int drain(long quietNanos) {
+        int dropped = 0;
+        while (count > 0) {
+            dropped += count;
+            clear();
+            long deadline = System.nanoTime() + quietNanos;
+            while (count == 0 && !closed && failure == null && waitUntil(deadline)) {
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Odrzuca wszystkie odebrane, nieprzeczytane bajty.
+     */
+    public synchronized void clear() {
+        head = 0;
+        count = 0;
+    }
+
+    /**
+     * Wylicza termin (System.nanoTime()) upływający za podany czas.
+     *
+     * @param timeout czas w milisekundach
+     * @return termin dla awaitBefore()/readBefore()
+     */
+    public static long deadline(long timeout) {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    /**
+     * Czeka, aż w buforze będzie co najmniej n bajtów.
+     *
+     * @param n oczekiwana liczba bajtów
+     * @param timeout czas oczekiwania w milisekundach
+     * @return true, jeśli bajty są dostępne, false po upływie czasu
+     * @throws IOException w przypadku błędu odbioru
+     */
+    public boolean await(int n, long timeout) throws IOException {
+        return awaitBefore(n, deadline(timeout));
+    }
+
+    /**
+     * Czeka, aż w buforze będzie co najmniej n bajtów, najdłużej do podanego
+     * terminu.
+     *
+     * @param n oczekiwana liczba bajtów
+     * @param deadline termin - patrz deadline()
+     * @return true, jeśli bajty są dostępne, false po upływie terminu
+     * @throws IOException w przypadku błędu odbioru
+     */
+    public synchronized boolean awaitBefore(int n, long deadline) throws IOException {
+        while (count < n) {
+            checkFailure();
+            if (closed || !waitUntil(deadline)) {
+                return count >= n;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Odczytuje jeden bajt, czekając na niego najwyżej timeout milisekund.
+     *
+     * @param timeout czas oczekiwania w milisekundach
+     * @return bajt (0-255) albo -1 po upływie czasu lub po zamknięciu bufora
+     * @throws IOException w przypadku błędu odbioru
+     */
+    public int read(long timeout) throws IOException {
+        return readBefore(deadline(timeout));
+    }
+
+    /**
+     * Odczytuje jeden bajt, czekając na niego najdłużej do podanego terminu.
+     *
+     * @param deadline termin - patrz deadline()
+     * @return bajt (0-255) albo -1 po upływie terminu lub po zamknięciu bufora
+     * @throws IOException w przypadku błędu odbioru
+     */
+    public synchronized int readBefore(long deadline) throws IOException {
+        return awaitBefore(1, deadline) ? take() : -1;
+    }
+
+    /**
+     * Odczytuje bajty aż do sekwencji kończącej włącznie.
+     *
+     * @param terminator sekwencja kończąca
+     * @param timeout czas oczekiwania na całość w milisekundach
+     * @return odczytane bajty razem z sekwencją kończącą albo null, jeśli
+     * sekwencja nie nadeszła w zadanym czasie (odczytane bajty są wtedy tracone)
+     * @throws IOException w przypadku błędu odbioru
+     */
+    public synchronized byte[] readUntil(byte[] terminator, long timeout) throws IOException {
+        long deadline = deadline(timeout);
+        byte[] seq = new byte[64];
+        int len = 0;
+        while (!endsWith(seq, len, terminator)) {
+            if (!awaitBefore(1, deadline)) {
+                return null;
+            }
+            if (len == seq.length) {
+                seq = Arrays.copyOf(seq, len * 2);
+            }
+            seq[len++] = (byte) take();
+        }
+        return Arrays.copyOf(seq, len);
+    }
+
+    /**
+     * @return strumień wejściowy czytający z bufora; read() blokuje do
+     * nadejścia danych
+     */
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    private boolean waitUntil(long deadline) {
+        long left = deadline - System.nanoTime();
+        if (left <= 0) {
+            return false;
+        }
+        try {
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static boolean endsWith(byte[] seq, int len, byte[] terminator) {
+        if (len < terminator.length) {
+            return false;
+        }
+        for (int i = 0; i < terminator.length; i++) {
+            if (seq[len - terminator.length + i] != terminator[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private int take() {
+        int b = data[head] & 0xFF;
+        head = (head + 1) % data.length;
+        count--;
+        return b;
+    }
+
+    private void copyOut(byte[] b, int off, int len) {
+        int first = Math.min(len, data.length - head);
+        System.arraycopy(data, head, b, off, first);
+        System.arraycopy(data, 0, b, off + first, len - first);
+        head = (head + len) % data.length;
+        count -= len;
+    }
+
+    private class Input extends InputStream {
+
+        ReceiveBuffer owner() {
+            return ReceiveBuffer.this;
+        }
+
+        @Override
+        public int read() throws IOException {
+            synchronized (ReceiveBuffer.this) {
+                return waitForData() ? take() : -1;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            synchronized (ReceiveBuffer.this) {
+                if (!waitForData()) {
+                    return -1;
+                }
+                int n = Math.min(len, count);
+                copyOut(b, off, n);
+                return n;
+            }
+        }
+
+        private boolean waitForData() throws IOException {
+            while (count == 0) {
+                checkFailure();
+                if (closed) {
+                    return false;
+                }
+                try {
+                    ReceiveBuffer.this.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return ReceiveBuffer.this.available();
+        }
+    }
+}
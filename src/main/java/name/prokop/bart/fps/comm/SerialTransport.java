@@ -0,0 +1,147 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps.comm;
+
+import gnu.io.SerialPort;
+import gnu.io.SerialPortEvent;
+import gnu.io.SerialPortEventListener;
+import gnu.io.UnsupportedCommOperationException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.TooManyListenersException;
+import name.prokop.bart.fps.util.PortEnumerator;
+
+/**
+ * Port szeregowy obsługiwany przez bibliotekę rxtx. Odbiór odbywa się
+ * zdarzeniowo (DATA_AVAILABLE).
+ *
+ * @author Bartłomiej Prokop
+ */
+public class SerialTransport implements Transport {
+
+    private final String portName;
+    private final int baudRate;
+    private final int dataBits;
+    private final int stopBits;
+    private final int parity;
+    private final int flowControl;
+    private SerialPort serialPort;
+    private OutputStream outputStream;
+
+    /**
+     * @param portName nazwa portu szeregowego
+     * @param baudRate prędkość transmisji
+     * @param dataBits SerialPort.DATABITS_*
+     * @param stopBits SerialPort.STOPBITS_*
+     * @param parity SerialPort.PARITY_*
+     * @param flowControl SerialPort.FLOWCONTROL_*
+     */
+    public SerialTransport(String portName, int baudRate, int dataBits, int stopBits, int parity, int flowControl) {
+        this.portName = portName;
+        this.baudRate = baudRate;
+        this.dataBits = dataBits;
+        this.stopBits = stopBits;
+        this.parity = parity;
+        this.flowControl = flowControl;
+    }
+
+    @Override
+    public void open(ReceiveBuffer receiveBuffer) throws IOException {
+        SerialPort port = PortEnumerator.getSerialPort(portName);
+        try {
+            port.setSerialPortParams(baudRate, dataBits, stopBits, parity);
+            port.setFlowControlMode(flowControl);
+
+            outputStream = port.getOutputStream();
+            port.addEventListener(new Receiver(port.getInputStream(), receiveBuffer));
+            port.notifyOnDataAvailable(true);
+        } catch (UnsupportedCommOperationException e) {
+            port.close();
+            throw new IOException("UnsupportedCommOperationException: " + e.getMessage(), e);
+        } catch (TooManyListenersException e) {
+            port.close();
+            throw new IOException("TooManyListenersException: " + e.getMessage(), e);
+        } catch (IOException e) {
+            port.close();
+            throw new IOException("IOException: " + e.getMessage(), e);
+        }
+        serialPort = port;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public boolean isCTS() {
+        return serialPort != null && serialPort.isCTS();
+    }
+
+    @Override
+    public void close() {
+        if (serialPort != null) {
+            serialPort.removeEventListener();
+            serialPort.close();
+        }
+        serialPort = null;
+        outputStream = null;
+    }
+
+    @Override
+    public String getName() {
+        return portName;
+    }
+
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    /**
+     * Przepisuje bajty z portu do bufora odbiorczego w wątku zdarzeń rxtx.
+     */
+    private static class Receiver implements SerialPortEventListener {
+
+        private final InputStream in;
+        private final ReceiveBuffer buffer;
+        private final byte[] b = new byte[256];
+
+        Receiver(InputStream in, ReceiveBuffer buffer) {
+            this.in = in;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void serialEvent(SerialPortEvent event) {
+            if (event.getEventType() != SerialPortEvent.DATA_AVAILABLE) {
+                return;
+            }
+            try {
+                int n;
+                while ((n = in.available()) > 0) {
+                    n = in.read(b, 0, Math.min(n, b.length));
+                    if (n < 0) {
+                        break;
+                    }
+                    buffer.feed(b, 0, n);
+                }
+            } catch (IOException e) {
+                buffer.fail(e);
+            }
+        }
+    }
+}
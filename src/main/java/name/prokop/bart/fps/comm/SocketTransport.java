@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps.comm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Połączenie TCP z drukarką (drukarki z interfejsem Ethernet albo konwertery
+ * serial-over-IP pracujące w trybie surowego gniazda).
+ *
+ * @author Bartłomiej Prokop
+ */
+public class SocketTransport implements Transport {
+
+    private static final int CONNECT_TIMEOUT = 3000;
+    private final String host;
+    private final int port;
+    private Socket socket;
+    private OutputStream outputStream;
+
+    public SocketTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public void open(ReceiveBuffer receiveBuffer) throws IOException {
+        Socket s = new Socket();
+        try {
+            s.setTcpNoDelay(true);
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            outputStream = s.getOutputStream();
+            receiveBuffer.pumpFrom(s.getInputStream(), "SocketTransport " + getName());
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+        socket = s;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public boolean isCTS() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+        socket = null;
+        outputStream = null;
+    }
+
+    @Override
+    public String getName() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps.comm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Kanał komunikacyjny z drukarką fiskalną: port szeregowy (SerialTransport),
+ * połączenie TCP (SocketTransport) albo kanał w pamięci do testów bez
+ * urządzenia (LoopbackTransport). Obiekty tworzy Transports.create() na
+ * podstawie adresu drukarki.
+ *
+ * @author Bartłomiej Prokop
+ */
+public interface Transport {
+
+    /**
+     * Otwiera kanał. Bajty odebrane od urządzenia są od tej chwili dopisywane
+     * do podanego bufora, aż do wywołania close().
+     *
+     * @param receiveBuffer bufor odbiorczy
+     * @throws IOException gdy nie można otworzyć kanału
+     */
+    void open(ReceiveBuffer receiveBuffer) throws IOException;
+
+    /**
+     * @return strumień do wysyłania danych do urządzenia (po open())
+     */
+    OutputStream getOutputStream();
+
+    /**
+     * @return stan linii CTS; kanały bez linii sterujących zwracają zawsze
+     * true
+     */
+    boolean isCTS();
+
+    void close();
+
+    /**
+     * @return nazwa kanału do komunikatów
+     */
+    String getName();
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps.comm;
+
+import gnu.io.SerialPort;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * Tworzy kanał komunikacyjny na podstawie adresu drukarki. Obsługiwane adresy:
+ * <ul>
+ * <li><CODE>COM1</CODE>, <CODE>/dev/ttyS0</CODE> - port szeregowy z
+ * parametrami domyślnymi sterownika,</li>
+ * <li><CODE>serial:/dev/ttyS0?baud=9600</CODE>,
+ * <CODE>serial:COM1?baud=19200&amp;parity=even</CODE> - port szeregowy;
+ * parametry: baud, databits, stopbits (1, 1.5, 2), parity (none, odd, even,
+ * mark, space), flow (none, rtscts, xonxoff),</li>
+ * <li><CODE>tcp://10.0.0.5:6666</CODE> - połączenie TCP,</li>
+ * <li><CODE>loop:nazwa</CODE> - kanał w pamięci (LoopbackTransport).</li>
+ * </ul>
+ *
+ * @author Bartłomiej Prokop
+ */
+public class Transports {
+
+    private Transports() {
+    }
+
+    /**
+     * @param address adres drukarki
+     * @param baudRate domyślna prędkość transmisji
+     * @param dataBits domyślne SerialPort.DATABITS_*
+     * @param stopBits domyślne SerialPort.STOPBITS_*
+     * @param parity domyślne SerialPort.PARITY_*
+     * @param flowControl domyślne SerialPort.FLOWCONTROL_*
+     * @return kanał (nie otwarty)
+     * @throws IOException gdy adres jest niepoprawny
+     */
+    public static Transport create(String address, int baudRate, int dataBits, int stopBits, int parity, int flowControl) throws IOException {
+        String scheme = getScheme(address);
+        if (scheme == null) {
+            return new SerialTransport(address, baudRate, dataBits, stopBits, parity, flowControl);
+        }
+        String rest = address.substring(scheme.length() + 1);
+        switch (scheme) {
+            case "tcp":
+                try {
+                    URI uri = new URI(address);
+                    if (uri.getHost() == null || uri.getPort() < 0) {
+                        throw new IOException("Niepoprawny adres: " + address);
+                    }
+                    return new SocketTransport(uri.getHost(), uri.getPort());
+                } catch (URISyntaxException e) {
+                    throw new IOException("Niepoprawny adres: " + address, e);
+                }
+            case "loop":
+                return LoopbackTransport.get(rest);
+            case "serial":
+            default:
+                String portName = rest;
+                String query = "";
+                if (rest.indexOf('?') != -1) {
+                    portName = rest.substring(0, rest.indexOf('?'));
+                    query = rest.substring(rest.indexOf('?') + 1);
+                }
+                for (String param : query.split("&")) {
+                    if (param.isEmpty()) {
+                        continue;
+                    }
+                    int eq = param.indexOf('=');
+                    String key = eq != -1 ? param.substring(0, eq).toLowerCase() : param.toLowerCase();
+                    String value = eq != -1 ? param.substring(eq + 1).toLowerCase() : "";
+                    try {
+                        switch (key) {
+                            case "baud":
+                                baudRate = Integer.parseInt(value);
+                                break;
+                            case "databits":
+                                dataBits = Integer.parseInt(value);
+                                break;
+                            case "stopbits":
+                                stopBits = parseStopBits(value);
+                                break;
+                            case "parity":
+                                parity = parseParity(value);
+                                break;
+                            case "flow":
+                                flowControl = parseFlowControl(value);
+                                break;
+                            default:
+                                throw new IOException("Nieznany parametr " + key + ": " + address);
+                        }
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Niepoprawna wartość " + key + ": " + address, e);
+                    }
+                }
+                return new SerialTransport(portName, baudRate, dataBits, stopBits, parity, flowControl);
+        }
+    }
+
+    /**
+     * @param address adres drukarki
+     * @return schemat adresu (serial, tcp, loop) albo null dla samej nazwy
+     * portu szeregowego
+     */
+    public static String getScheme(String address) {
+        int colon = address.indexOf(':');
+        if (colon == -1) {
+            return null;
+        }
+        String scheme = address.substring(0, colon).toLowerCase();
+        switch (scheme) {
+            case "serial":
+            case "tcp":
+            case "loop":
+                return scheme;
+            default:
+                return null;
+        }
+    }
+
+    private static int parseStopBits(String value) throws IOException {
+        switch (value) {
+            case "1":
+                return SerialPort.STOPBITS_1;
+            case "1.5":
+                return SerialPort.STOPBITS_1_5;
+            case "2":
+                return SerialPort.STOPBITS_2;
+            default:
+                throw new IOException("Niepoprawna wartość stopbits: " + value);
+        }
+    }
+
+    private static int parseParity(String value) throws IOException {
+        switch (value) {
+            case "none":
+                return SerialPort.PARITY_NONE;
+            case "odd":
+                return SerialPort.PARITY_ODD;
+            case "even":
+                return SerialPort.PARITY_EVEN;
+            case "mark":
+                return SerialPort.PARITY_MARK;
+            case "space":
+                return SerialPort.PARITY_SPACE;
+            default:
+                throw new IOException("Niepoprawna wartość parity: " + value);
+        }
+    }
+
+    private static int parseFlowControl(String value) throws IOException {
+        switch (value) {
+            case "none":
+                return SerialPort.FLOWCONTROL_NONE;
+            case "rtscts":
+                return SerialPort.FLOWCONTROL_RTSCTS_IN | SerialPort.FLOWCONTROL_RTSCTS_OUT;
+            case "xonxoff":
+                return SerialPort.FLOWCONTROL_XONXOFF_IN | SerialPort.FLOWCONTROL_XONXOFF_OUT;
+            default:
+                throw new IOException("Niepoprawna wartość flow: " + value);
+        }
+    }
+}
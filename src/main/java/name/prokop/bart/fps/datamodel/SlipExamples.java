@@ -6,8 +6,16 @@ import name.prokop.bart.fps.util.StringGenerator;
 
 public class SlipExamples {
 
+    /**
+     * @return true, jeśli zamiast przekazanych paragonów drukowany jest
+     * paragon demonstracyjny - patrz demo()
+     */
+    public static boolean isDemo() {
+        return Calendar.getInstance().get(Calendar.YEAR) >= 2019;
+    }
+
     public static Slip demo(Slip slip) {
-        if (Calendar.getInstance().get(Calendar.YEAR) >= 2019) {
+        if (isDemo()) {
             return getUnlicensed();
         } else {
             return slip;
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps.datamodel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Paragon odczytywany pozycja po pozycji - np. wprost ze strumienia
+ * sieciowego. Nagłówek (referencja, kasjer, kasa) jest dostępny od razu,
+ * pozycje są pobierane metodą nextLine() w miarę ich napływania, a formy
+ * płatności - dopiero po odczytaniu ostatniej pozycji. Dzięki temu sterownik
+ * może wysyłać pozycje do drukarki, zanim cały paragon zostanie odebrany, a
+ * zajętość pamięci nie zależy od długości paragonu.
+ *
+ * @author Bartłomiej Prokop
+ */
+public abstract class SlipStream implements Closeable {
+
+    private double total;
+    private boolean finished;
+
+    public abstract String getReference();
+
+    public abstract String getCashierName();
+
+    public abstract String getCashbox();
+
+    /**
+     * Pobiera kolejną pozycję paragonu.
+     *
+     * @return pozycja albo null, jeśli paragon nie ma już więcej pozycji
+     * @throws IOException w przypadku błędu odczytu
+     */
+    public final SaleLine nextLine() throws IOException {
+        if (finished) {
+            return null;
+        }
+        SaleLine line = readLine();
+        if (line == null) {
+            finished = true;
+        } else {
+            total += line.getTotal();
+        }
+        return line;
+    }
+
+    /**
+     * @return kolejna pozycja odczytana ze źródła albo null na końcu pozycji
+     * @throws IOException w przypadku błędu odczytu
+     */
+    protected abstract SaleLine readLine() throws IOException;
+
+    /**
+     * @return wartość brutto pozycji odczytanych do tej pory - po ostatniej
+     * pozycji jest to wartość całego paragonu
+     */
+    public double getTotal() {
+        return Toolbox.roundCurrency(total);
+    }
+
+    /**
+     * @return true, jeśli odczytano już wszystkie pozycje
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Zwraca formy płatności. Wolno wołać dopiero po odczytaniu wszystkich
+     * pozycji.
+     *
+     * @return formy płatności
+     * @throws IOException w przypadku błędu odczytu
+     */
+    public List<SlipPayment> getPayments() throws IOException {
+        if (!finished) {
+            throw new IllegalStateException("Nie odczytano wszystkich pozycji paragonu");
+        }
+        return readPayments();
+    }
+
+    /**
+     * @return formy płatności - wołane po odczytaniu ostatniej pozycji
+     * @throws IOException w przypadku błędu odczytu
+     */
+    protected abstract List<SlipPayment> readPayments() throws IOException;
+
+    /**
+     * Odczytuje pozostałe pozycje i zwraca cały paragon w pamięci - dla
+     * sterowników, które nie drukują pozycji w miarę ich napływania.
+     *
+     * @return paragon
+     * @throws IOException w przypadku błędu odczytu
+     */
+    public Slip toSlip() throws IOException {
+        Slip slip = new Slip();
+        slip.setReference(getReference());
+        slip.setCashierName(getCashierName());
+        slip.setCashbox(getCashbox());
+        SaleLine line;
+        while ((line = nextLine()) != null) {
+            slip.addLine(line);
+        }
+        for (SlipPayment payment : getPayments()) {
+            slip.addPayment(payment);
+        }
+        return slip;
+    }
+}
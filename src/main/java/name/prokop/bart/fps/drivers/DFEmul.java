@@ -13,7 +13,6 @@
 package name.prokop.bart.fps.drivers;
 
 import gnu.io.SerialPort;
-import gnu.io.UnsupportedCommOperationException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -23,6 +22,9 @@ import java.util.List;
 import java.util.logging.Logger;
 import name.prokop.bart.fps.FiscalPrinter;
 import name.prokop.bart.fps.FiscalPrinterException;
+import name.prokop.bart.fps.PrintResult;
+import name.prokop.bart.fps.comm.FrameBuilder;
+import name.prokop.bart.fps.comm.PortSession;
 import name.prokop.bart.fps.datamodel.DiscountType;
 import name.prokop.bart.fps.datamodel.Invoice;
 import name.prokop.bart.fps.datamodel.SaleLine;
@@ -31,7 +33,6 @@ import name.prokop.bart.fps.datamodel.SlipExamples;
 import name.prokop.bart.fps.datamodel.SlipPayment;
 import name.prokop.bart.fps.datamodel.VATRate;
 import name.prokop.bart.fps.util.BitsAndBytes;
-import name.prokop.bart.fps.util.PortEnumerator;
 import name.prokop.bart.fps.util.ToString;
 
 /**
@@ -80,9 +81,23 @@ public class DFEmul implements FiscalPrinter {
      */
     private DFEmul(String comPortName) {
         this.comPortName = comPortName;
+        this.session = PortSession.getSession(comPortName, 9600, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE, SerialPort.FLOWCONTROL_NONE);
+        this.capabilities = DeviceCapabilities.forPort(comPortName);
+        this.session.setStatusProbeIfAbsent(s -> s.probe(0x10, 500));
     }
-    private SerialPort serialPort;
+    private final PortSession session;
+    private final DeviceCapabilities capabilities;
+    /**
+     * Trwa wydruk paczki paragonów - print(Iterable).
+     */
+    private boolean batch;
+    /**
+     * Poprzedni paragon paczki zakończył się poprawnie - drukarka nie wymaga
+     * resetu i ustawienia trybu obsługi błędów.
+     */
+    private boolean prepared;
     private OutputStream outputStream;
+    private final FrameBuilder frame = new FrameBuilder();
     private InputStream inputStream;
 
     private void fixDiscounts(Slip slip) {
@@ -126,20 +141,75 @@ public class DFEmul implements FiscalPrinter {
 //        System.out.println("Paragon do (2) druku: " + slip);
         try {
             connect();
-            reset();
-            flushStreams();
-
-            // ustaw pełną, programową obsługę błędów
-            sendLBSERM((byte) 3);
-
-            // jeśli w stanie transakcji, to anuluj istniejącą transakcję
-            if (pflPAR) {
-                sendLBTREXITCAN();
+            boolean ready = prepared;
+            prepared = false;
+            if (!ready) {
+                reset();
+                flushStreams();
+
+                // ustaw pełną, programową obsługę błędów
+                sendLBSERM((byte) 3);
+
+                // jeśli w stanie transakcji, to anuluj istniejącą transakcję
+                if (pflPAR) {
+                    sendLBTREXITCAN();
+                }
             }
 
-            // get all information (status, totals, serial, etc) from printer
-            sendLBFSTRQ((byte) 23);
+            // stawki PTU z pamięci podręcznej, LBFSTRQ tylko gdy ich brak
+            loadPTU(slip.getSlipLines());
             printSlip(slip);
+            // w paczce kolejny paragon nie wymaga ponownego przygotowania drukarki
+            prepared = batch;
+        } catch (FiscalPrinterException e) {
+            capabilities.checkError(e, ThermalResync.VAT_ERRORS);
+            throw e;
+        } finally {
+            disconnect();
+        }
+    }
+
+    /**
+     * Drukuje paragony jeden po drugim w jednym połączeniu z drukarką.
+     * Przygotowanie drukarki (reset, tryb obsługi błędów) wykonywane jest
+     * przed pierwszym paragonem i po każdym nieudanym.
+     *
+     * @param slips paragony do wydrukowania
+     * @return wyniki kolejnych paragonów
+     */
+    @Override
+    public synchronized List<PrintResult> print(Iterable<Slip> slips) {
+        batch = true;
+        try {
+            connect();
+        } catch (FiscalPrinterException e) {
+            // błąd zostanie zgłoszony w wyniku każdego paragonu
+        }
+        try {
+            return FiscalPrinter.super.print(slips);
+        } finally {
+            batch = false;
+            prepared = false;
+            disconnect();
+        }
+    }
+
+    /**
+     * Sprawdza stan drukarki rozkazem DLE, bez drukowania. Niezakończona
+     * transakcja (PAR) nie przeszkadza - print() ją anuluje.
+     *
+     * @return true, jeśli drukarka odpowiada, jest on-line, ma papier i nie
+     * zgłasza błędu mechanizmu
+     * @throws FiscalPrinterException gdy nie da się otworzyć portu
+     */
+    @Override
+    public synchronized boolean isReady() throws FiscalPrinterException {
+        try {
+            connect();
+            flushStreams();
+            printerConnected = false;
+            sendDLE();
+            return printerConnected && pflONL && !pflPE && !pflERR;
         } finally {
             disconnect();
         }
@@ -178,6 +248,8 @@ public class DFEmul implements FiscalPrinter {
             // wydrukuj raport dobowy
             sendLBDAYREP();
         } finally {
+            // raport dobowy kończy okres, w którym stawki VAT są niezmienne
+            capabilities.invalidate();
             disconnect();
         }
     }
@@ -195,10 +267,8 @@ public class DFEmul implements FiscalPrinter {
         logger.finest("Suma: " + slip.getTotal());
         sendLBTRXEND(slip.getTotal());
 
-        try {
-            Thread.sleep(250);
-        } catch (InterruptedException ex) {
-        }
+        // zaczekaj na zakończenie wydruku
+        waitUntilIdle(250);
         // otworz szuflade
         sendLBDSP();
     }
@@ -260,34 +330,17 @@ public class DFEmul implements FiscalPrinter {
 
     private String readSeq(int timeout) {
         StringBuilder buffer = new StringBuilder();
-        while (timeout-- != 0) {
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-            }
-
-            try {
-                byte[] b;
-                if (inputStream.available() > 0) {
-                    b = new byte[1];
-                    inputStream.read(b, 0, 1);
-                    buffer.append(new String(b));
-                }
-            } catch (IOException e) {
-            }
-
-            if (buffer.indexOf(suffix) != -1) {
-                break;
-            }
-        }
-
+        byte[] seq = null;
         try {
-            Thread.sleep(500);
-            if (inputStream.available() > 0) {
-                throw new Exception();
-            }
-        } catch (Exception e) {
+            seq = session.getReceiveBuffer().readUntil(suffix.getBytes(), timeout);
+        } catch (IOException e) {
         }
+        if (seq != null) {
+            buffer.append(new String(seq));
+        }
+
+        // odrzuć ewentualne bajty nadesłane po sufiksie odpowiedzi
+        session.flushInput();
 
         if (buffer.indexOf(prefix) != -1) {
             buffer.delete(buffer.indexOf(prefix), buffer.indexOf(prefix) + 2);
@@ -297,7 +350,7 @@ public class DFEmul implements FiscalPrinter {
             buffer.delete(buffer.indexOf(suffix), buffer.indexOf(suffix) + 2);
         }
 
-        if (timeout > 0) {
+        if (seq != null) {
             return buffer.toString();
         } else {
             return "";
@@ -305,42 +358,23 @@ public class DFEmul implements FiscalPrinter {
     }
 
     private void flushStreams() {
-        try {
-            Thread.sleep(200);
-        } catch (InterruptedException e) {
-        }
-        try {
-            while (inputStream.available() > 0) {
-                inputStream.read();
-            }
-        } catch (IOException e) {
-        }
+        session.flushInput();
     }
     private boolean printerConnected;
+    /**
+     * Maksymalny czas oczekiwania na zakończenie wydruku w ms.
+     */
+    private static final long IDLE_TIMEOUT = 10000;
 
-    private void reset() {
-        for (int i = 0; i < 15; i++) {
-            sendCAN();
-            try {
-                Thread.sleep(25);
-            } catch (InterruptedException e) {
-            }
-            sendCAN();
-            try {
-                Thread.sleep(25);
-            } catch (InterruptedException e) {
-            }
-            sendDLE();
-            try {
-                Thread.sleep(25);
-            } catch (InterruptedException e) {
-            }
-            sendENQ();
-            try {
-                Thread.sleep(25);
-            } catch (InterruptedException e) {
-            }
+    private void waitUntilIdle(long fallback) {
+        if (!printerConnected) {
+            return;
         }
+        ThermalResync.waitUntilIdle(session, IDLE_TIMEOUT, fallback, b -> decodeDLE((byte) b), b -> decodeENQ((byte) b));
+    }
+
+    private void reset() {
+        printerConnected = ThermalResync.reset(session, 15, b -> decodeDLE((byte) b), b -> decodeENQ((byte) b)) > 0;
     }
 
     private byte decodeLBERSTS(String seq) {
@@ -364,28 +398,20 @@ public class DFEmul implements FiscalPrinter {
         }
 
         byte[] seq = ("0$e").getBytes();
-        sendPrefix();
         try {
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTREXITCAN " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTREXITCAN " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
         sendENQ();
 
-        try {
-            while (inputStream.available() > 0) {
-                inputStream.read();
-            }
-        } catch (IOException e) {
-        }
+        session.flushInput();
     }
 
     private void sendLBDSP() throws FiscalPrinterException {
@@ -394,17 +420,14 @@ public class DFEmul implements FiscalPrinter {
         }
 
         byte[] seq = ("1$d").getBytes();
-        sendPrefix();
         try {
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBDSP " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBDSP " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -419,17 +442,14 @@ public class DFEmul implements FiscalPrinter {
         Date now = new Date();
         @SuppressWarnings("deprecation")
         byte[] seq = ("1;" + (now.getYear() - 100) + ";" + (now.getMonth() + 1) + ";" + now.getDate() + "#r").getBytes();
-        sendPrefix();
         try {
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(10000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBDSP " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBDSP " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -444,18 +464,15 @@ public class DFEmul implements FiscalPrinter {
         }
         // rozpoczecie wydruku
         byte[] seq = ("0;" + p2 + ";" + p3 + "$w").getBytes();
-        sendPrefix();
         try {
 //            System.out.println("LBTRSHDR_1: " + new String(seq));
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRSHDR " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRSHDR " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -469,18 +486,15 @@ public class DFEmul implements FiscalPrinter {
         }
 
         byte[] seq = (p1 + ";" + p2 + "$w" + linia + "\r").getBytes();
-        sendPrefix();
         try {
 //            System.out.println("LBTRSHDR_1: " + new String(seq));
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRSHDR " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRSHDR " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -494,18 +508,15 @@ public class DFEmul implements FiscalPrinter {
         }
 
         byte[] seq = (p1 + ";254;0$w" + kod + "\r").getBytes();
-        sendPrefix();
         try {
 //            System.out.println("LBTRSHDR_1: " + new String(seq));
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRSHDR " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRSHDR " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -525,19 +536,16 @@ public class DFEmul implements FiscalPrinter {
                 footLine3 + "\r" // linia dodatkowa 3
         );
 
-        sendPrefix();
         try {
             logger.finest("LBTRXEND1: " + new String(seq));
 //            System.out.println("LBTRXEND1: " + new String(seq));
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(10000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRXEND1 " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRXEND1 " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -554,18 +562,15 @@ public class DFEmul implements FiscalPrinter {
         }
 
         byte[] seq = (pl + "$h").getBytes();
-        sendPrefix();
         try {
 //            System.out.println("LBTRSHDR: " + new String(seq));
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRSHDR " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRSHDR " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -583,19 +588,16 @@ public class DFEmul implements FiscalPrinter {
             discount *= 100.0;
         }
         byte[] seq = ToString.string2Mazovia(slipLineNo + ";" + discountType + "$l" + name + "\r" + amount + "\r" + vatRate + "/" + price + "/" + gross + "/" + discount + "/");
-        sendPrefix();
         try {
             logger.finest("LBTRSLN: " + new String(seq));
 //            System.err.println("LBTRSLN: " + new String(seq));
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(2000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRSLN " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRSLN " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -609,19 +611,16 @@ public class DFEmul implements FiscalPrinter {
 
         byte[] seq = ToString.string2Mazovia("1;0$eX01\r" + total + "/" + total + "/");
 
-        sendPrefix();
         try {
             logger.finest("LBTRXEND: " + new String(seq));
 //            System.out.println("LBTRXEND: " + new String(seq));
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(10000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRXEND1 " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRXEND1 " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -658,17 +657,14 @@ public class DFEmul implements FiscalPrinter {
         }
 
         byte[] seq = (ps + "#e").getBytes();
-        sendPrefix();
         try {
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
         readSeq(1000);
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBSERM " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBSERM " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -681,19 +677,17 @@ public class DFEmul implements FiscalPrinter {
         }
 
         byte[] seq = (ps + "#s").getBytes();
-        sendPrefix();
         try {
-            outputStream.write(seq);
-            //outputStream.write(calculateCC(seq));
+            // rozkaz bez sumy kontrolnej
+            sendFrame(seq, false);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         decodeLBFSTRQ(readSeq(1000));
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBFSTRQ " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBFSTRQ " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -707,6 +701,23 @@ public class DFEmul implements FiscalPrinter {
     private VATRate ptuF;
     private VATRate ptuG;
 
+    private void loadPTU(Iterable<SaleLine> lines) throws FiscalPrinterException {
+        VATRate[] ptu = capabilities.getVatTable(7, lines);
+        if (ptu == null) {
+            // get all information (status, totals, serial, etc) from printer
+            sendLBFSTRQ((byte) 23);
+            capabilities.setVatTable(ptuA, ptuB, ptuC, ptuD, ptuE, ptuF, ptuG);
+            return;
+        }
+        ptuA = ptu[0];
+        ptuB = ptu[1];
+        ptuC = ptu[2];
+        ptuD = ptu[3];
+        ptuE = ptu[4];
+        ptuF = ptu[5];
+        ptuG = ptu[6];
+    }
+
     private void decodeLBFSTRQ(String seq) {
 //        System.out.println(seq);
         seq = seq.substring(seq.indexOf('/') + 1);
@@ -765,17 +776,7 @@ public class DFEmul implements FiscalPrinter {
     }
 
     private boolean waitForOneByte() throws IOException {
-        int t = 2000;
-        while (t-- != 0) {
-            if (inputStream.available() >= 1) {
-                return true;
-            }
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-            }
-        }
-        return false;
+        return session.getReceiveBuffer().await(1, 2000);
     }
 
     /**
@@ -826,6 +827,7 @@ public class DFEmul implements FiscalPrinter {
 
         try {
             outputStream.write(0x05);
+            outputStream.flush();
             if (waitForOneByte()) {
                 decodeENQ((byte) inputStream.read());
             }
@@ -836,6 +838,7 @@ public class DFEmul implements FiscalPrinter {
     private void sendBEL() {
         try {
             outputStream.write(0x07);
+            outputStream.flush();
         } catch (IOException e) {
         }
     }
@@ -843,6 +846,7 @@ public class DFEmul implements FiscalPrinter {
     private void sendDLE() {
         try {
             outputStream.write(0x10);
+            outputStream.flush();
             if (waitForOneByte()) {
                 printerConnected = true;
                 decodeDLE((byte) inputStream.read());
@@ -856,6 +860,7 @@ public class DFEmul implements FiscalPrinter {
     private void sendCAN() {
         try {
             outputStream.write(0x18);
+            outputStream.flush();
         } catch (IOException e) {
         }
     }
@@ -887,46 +892,25 @@ public class DFEmul implements FiscalPrinter {
      * @return
      */
     private void connect() throws FiscalPrinterException {
-        try {
-            serialPort = PortEnumerator.getSerialPort(comPortName);
-        } catch (Exception e) {
-            throw new FiscalPrinterException("Nie można otworzyć portu: " + e.getMessage());
-        }
-
-        try {
-            serialPort.setSerialPortParams(9600,
-                    SerialPort.DATABITS_8,
-                    SerialPort.STOPBITS_1,
-                    SerialPort.PARITY_NONE);
-            serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
-
-            outputStream = serialPort.getOutputStream();
-            inputStream = serialPort.getInputStream();
-        } catch (UnsupportedCommOperationException e) {
-            throw new FiscalPrinterException("Nie można otworzyć portu: UnsupportedCommOperationException: " + e.getMessage());
-        } catch (IOException e) {
-            throw new FiscalPrinterException("Nie można otworzyć portu: IOException: " + e.getMessage());
-        }
+        session.open();
+        outputStream = session.getOutputStream();
+        inputStream = session.getInputStream();
     }
 
     private void disconnect() {
-        serialPort.close();
+        session.release();
     }
 
-    private void sendPrefix() {
-        try {
-            outputStream.write(0x1B);
-            outputStream.write(0x50);
-        } catch (IOException e) {
-        }
+    private void sendFrame(byte[] seq) throws IOException {
+        sendFrame(seq, true);
     }
 
-    private void sendSuffix() {
-        try {
-            outputStream.write(0x1B);
-            outputStream.write(0x5C);
-        } catch (IOException e) {
+    private void sendFrame(byte[] seq, boolean withCC) throws IOException {
+        frame.reset().append(0x1B).append(0x50).append(seq);
+        if (withCC) {
+            frame.append(calculateCC(seq));
         }
+        frame.append(0x1B).append(0x5C).writeTo(outputStream);
     }
 
     /**
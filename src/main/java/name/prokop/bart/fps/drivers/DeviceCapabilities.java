@@ -0,0 +1,293 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps.drivers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import name.prokop.bart.fps.FiscalPrinterException;
+import name.prokop.bart.fps.datamodel.SaleLine;
+import name.prokop.bart.fps.datamodel.VATRate;
+
+/**
+ * Pamięć podręczna stałych parametrów drukarki: przypisania stawek VAT do
+ * pozycji w drukarce, numeru unikatowego, modelu i wersji oprogramowania.
+ * Parametry są wspólne dla wszystkich obiektów obsługujących ten sam port i są
+ * odczytywane z drukarki tylko wtedy, gdy ich brak - stawki VAT zmieniają się
+ * wyłącznie po raporcie dobowym.
+ *
+ * Pamięć jest unieważniana po raporcie dobowym, po błędzie drukarki
+ * dotyczącym stawek oraz na żądanie (invalidate()). Jeśli ustawiono
+ * właściwość systemową name.prokop.bart.fps.capabilities.dir, parametry są
+ * zapisywane w tym katalogu i odczytywane po ponownym uruchomieniu.
+ * Przypisanie stawek VAT jest zapisywane tylko razem z numerem unikatowym
+ * drukarki (setIdentity()) - sterownik, który go ustawia, musi przed użyciem
+ * stawek porównać go z numerem odczytanym z drukarki. Stawki sterowników,
+ * które nie odczytują numeru (rodzina Thermal), są pamiętane tylko do końca
+ * działania programu, bo po ponownym uruchomieniu do portu może być
+ * przyłączona inna drukarka.
+ *
+ * @author Bartłomiej Prokop
+ */
+public class DeviceCapabilities {
+
+    private static final Logger logger = Logger.getLogger(DeviceCapabilities.class.getName());
+    private static final Map<String, DeviceCapabilities> devices = new HashMap<>();
+    private final String port;
+    private final Path file;
+    private Map<VATRate, Integer> vatSlots;
+    private String serialNumber;
+    private String model;
+    private String firmware;
+
+    private DeviceCapabilities(String port, Path file) {
+        this.port = port;
+        this.file = file;
+    }
+
+    /**
+     * Zwraca parametry drukarki przyłączonej do podanego portu, przy
+     * pierwszym wywołaniu wczytując je z katalogu
+     * name.prokop.bart.fps.capabilities.dir (jeśli ustawiono).
+     *
+     * @param port nazwa portu albo adres drukarki
+     * @return parametry drukarki
+     */
+    public static DeviceCapabilities forPort(String port) {
+        synchronized (devices) {
+            DeviceCapabilities c = devices.get(port);
+            if (c == null) {
+                String dir = System.getProperty("name.prokop.bart.fps.capabilities.dir");
+                c = new DeviceCapabilities(port, dir != null ? Paths.get(dir, port.replaceAll("[^A-Za-z0-9._-]", "_") + ".properties") : null);
+                c.load();
+                devices.put(port, c);
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Unieważnia parametry drukarki przyłączonej do podanego portu - zostaną
+     * odczytane z drukarki przy następnym paragonie.
+     *
+     * @param port nazwa portu albo adres drukarki
+     */
+    public static void invalidate(String port) {
+        forPort(port).invalidate();
+    }
+
+    public String getPort() {
+        return port;
+    }
+
+    /**
+     * Zwraca przypisanie stawek VAT do pozycji w drukarce, o ile zawiera ono
+     * wszystkie stawki użyte w podanych liniach.
+     *
+     * @param lines linie paragonu lub faktury
+     * @return kopia przypisania albo null, jeśli trzeba je odczytać z drukarki
+     */
+    public synchronized Map<VATRate, Integer> getVatSlots(Iterable<? extends SaleLine> lines) {
+        if (vatSlots == null) {
+            return null;
+        }
+        for (SaleLine line : lines) {
+            if (!vatSlots.containsKey(line.getTaxRate())) {
+                logger.fine("Brak stawki " + line.getTaxRate() + " w pamięci - odczyt z drukarki " + port);
+                return null;
+            }
+        }
+        return new EnumMap<>(vatSlots);
+    }
+
+    /**
+     * @param vatSlots przypisanie stawek VAT do pozycji w drukarce
+     */
+    public synchronized void setVatSlots(Map<VATRate, Integer> vatSlots) {
+        this.vatSlots = vatSlots.isEmpty() ? new EnumMap<>(VATRate.class) : new EnumMap<>(vatSlots);
+        save();
+    }
+
+    /**
+     * Zwraca tablicę stawek (pozycja A, B, C...) w postaci używanej przez
+     * sterowniki Thermal.
+     *
+     * @param size liczba pozycji w drukarce
+     * @param lines linie paragonu lub faktury
+     * @return tablica stawek albo null, jeśli trzeba ją odczytać z drukarki
+     */
+    public VATRate[] getVatTable(int size, Iterable<? extends SaleLine> lines) {
+        Map<VATRate, Integer> slots = getVatSlots(lines);
+        if (slots == null) {
+            return null;
+        }
+        VATRate[] table = new VATRate[size];
+        for (Map.Entry<VATRate, Integer> e : slots.entrySet()) {
+            if (e.getValue() >= size) {
+                return null;
+            }
+            table[e.getValue()] = e.getKey();
+        }
+        return table;
+    }
+
+    /**
+     * Zapamiętuje tablicę stawek (pozycja A, B, C...). Jeśli ta sama stawka
+     * występuje na kilku pozycjach, zapamiętywana jest ostatnia.
+     *
+     * @param table stawki, null dla pozycji nieaktywnej
+     */
+    public void setVatTable(VATRate... table) {
+        Map<VATRate, Integer> slots = new EnumMap<>(VATRate.class);
+        for (int i = 0; i < table.length; i++) {
+            if (table[i] != null) {
+                slots.put(table[i], i);
+            }
+        }
+        setVatSlots(slots);
+    }
+
+    public synchronized String getSerialNumber() {
+        return serialNumber;
+    }
+
+    public synchronized String getModel() {
+        return model;
+    }
+
+    public synchronized String getFirmware() {
+        return firmware;
+    }
+
+    /**
+     * @param serialNumber numer unikatowy drukarki
+     * @param model nazwa modelu
+     * @param firmware wersja oprogramowania
+     */
+    public synchronized void setIdentity(String serialNumber, String model, String firmware) {
+        if (Objects.equals(this.serialNumber, serialNumber) && Objects.equals(this.model, model) && Objects.equals(this.firmware, firmware)) {
+            return;
+        }
+        this.serialNumber = serialNumber;
+        this.model = model;
+        this.firmware = firmware;
+        save();
+    }
+
+    /**
+     * Unieważnia wszystkie zapamiętane parametry.
+     */
+    public synchronized void invalidate() {
+        vatSlots = null;
+        serialNumber = null;
+        model = null;
+        firmware = null;
+        save();
+    }
+
+    /**
+     * Unieważnia przypisanie stawek VAT, jeśli numer błędu zgłoszonego przez
+     * drukarkę (FiscalPrinterException.getErrorCode()) dotyczy stawek.
+     *
+     * @param e błąd
+     * @param vatErrors numery błędów dotyczących stawek w protokole drukarki
+     */
+    public void checkError(Exception e, Set<String> vatErrors) {
+        String errorCode = e instanceof FiscalPrinterException ? ((FiscalPrinterException) e).getErrorCode() : null;
+        if (errorCode != null && vatErrors.contains(errorCode)) {
+            logger.info("Błąd stawek drukarki " + port + " - ponowny odczyt stawek: " + e.getMessage());
+            synchronized (this) {
+                vatSlots = null;
+                save();
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return port + ": model " + model + ", firmware " + firmware + ", SN " + serialNumber + ", VAT " + vatSlots;
+    }
+
+    private void load() {
+        if (file == null || !Files.exists(file)) {
+            return;
+        }
+        Properties p = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            p.load(in);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Nie można odczytać " + file, e);
+            return;
+        }
+        serialNumber = p.getProperty("serialNumber");
+        model = p.getProperty("model");
+        firmware = p.getProperty("firmware");
+        // stawki bez numeru unikatowego nie są wiarygodne
+        if (p.getProperty("vat") != null && serialNumber != null) {
+            vatSlots = new EnumMap<>(VATRate.class);
+            for (VATRate rate : VATRate.values()) {
+                String slot = p.getProperty("vat." + rate.name());
+                if (slot != null) {
+                    vatSlots.put(rate, Integer.valueOf(slot));
+                }
+            }
+        }
+    }
+
+    private void save() {
+        if (file == null) {
+            return;
+        }
+        Properties p = new Properties();
+        if (serialNumber != null) {
+            p.setProperty("serialNumber", serialNumber);
+        }
+        if (model != null) {
+            p.setProperty("model", model);
+        }
+        if (firmware != null) {
+            p.setProperty("firmware", firmware);
+        }
+        if (vatSlots != null && serialNumber != null) {
+            p.setProperty("vat", "true");
+            for (Map.Entry<VATRate, Integer> e : vatSlots.entrySet()) {
+                p.setProperty("vat." + e.getKey().name(), e.getValue().toString());
+            }
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                p.store(out, port);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Nie można zapisać " + file, e);
+        }
+    }
+}
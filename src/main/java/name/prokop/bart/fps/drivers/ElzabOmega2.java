@@ -11,19 +11,24 @@
 package name.prokop.bart.fps.drivers;
 
 import gnu.io.SerialPort;
-import gnu.io.UnsupportedCommOperationException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 import name.prokop.bart.fps.FiscalPrinter;
 import name.prokop.bart.fps.FiscalPrinterException;
+import name.prokop.bart.fps.PrintResult;
+import name.prokop.bart.fps.comm.FrameBuilder;
+import name.prokop.bart.fps.comm.PortSession;
+import name.prokop.bart.fps.comm.ReceiveBuffer;
 import name.prokop.bart.fps.datamodel.Invoice;
 import name.prokop.bart.fps.datamodel.SaleLine;
 import name.prokop.bart.fps.datamodel.Slip;
 import name.prokop.bart.fps.datamodel.SlipExamples;
 import name.prokop.bart.fps.datamodel.VATRate;
 import name.prokop.bart.fps.util.BitsAndBytes;
-import name.prokop.bart.fps.util.PortEnumerator;
 import name.prokop.bart.fps.util.ToString;
 
 /**
@@ -63,10 +68,27 @@ public class ElzabOmega2 implements FiscalPrinter {
         return new ElzabOmega2(comPortName);
     }
     private String comPortName;
-    private SerialPort serialPort = null;
+    private final PortSession session;
+    private final DeviceCapabilities capabilities;
+    /**
+     * Maksymalny czas oczekiwania na gotowość drukarki w ms.
+     */
+    private static final long READY_TIMEOUT = 60000;
+    /**
+     * Odstęp pomiędzy kolejnymi odczytami stanu drukarki w ms.
+     */
+    private static final long READY_POLL_INTERVAL = 250;
+    /**
+     * Czas oczekiwania na odpowiedź testu łącza w ms.
+     */
+    private static final int PROBE_TIMEOUT = 500;
+    private final FrameBuilder frame = new FrameBuilder();
 
     private ElzabOmega2(String comPortName) {
         this.comPortName = comPortName;
+        this.session = PortSession.getSession(comPortName, 9600, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_EVEN, SerialPort.FLOWCONTROL_RTSCTS_OUT);
+        this.capabilities = DeviceCapabilities.forPort(comPortName);
+        this.session.setStatusProbeIfAbsent(s -> probe(s));
     }
 
     @Override
@@ -75,14 +97,10 @@ public class ElzabOmega2 implements FiscalPrinter {
         try {
             prepareSerialPort();
 
-            while (!checkPrinter()) {
-                try {
-                    Thread.sleep(2000);
-                } catch (InterruptedException e) {
-                }
-            }
+            waitUntilReady();
 
-            readRates();
+            // stawki z pamięci podręcznej, odczyt z drukarki tylko gdy ich brak
+            loadRates(slip.getSlipLines());
 
             sendToPrinter(new byte[]{0x1B, 0x21}); // rozpoczęscie paragonu
             waitForAck();
@@ -110,10 +128,30 @@ public class ElzabOmega2 implements FiscalPrinter {
 
             sendToPrinter(new byte[]{0x1B, 0x24}); // zakończenie paragonu
             waitForAck();
+            // drukarka odpowiada tylko ACK/NAK, bez numeru błędu - stawki
+            // unieważnia raport dobowy
         } finally {
-            if (serialPort != null) {
-                serialPort.close();
-            }
+            session.release();
+        }
+    }
+
+    /**
+     * Drukuje paragony jeden po drugim, nie zamykając portu pomiędzy nimi.
+     *
+     * @param slips paragony do wydrukowania
+     * @return wyniki kolejnych paragonów
+     */
+    @Override
+    public synchronized List<PrintResult> print(Iterable<Slip> slips) {
+        try {
+            prepareSerialPort();
+        } catch (FiscalPrinterException e) {
+            // błąd zostanie zgłoszony w wyniku każdego paragonu
+        }
+        try {
+            return FiscalPrinter.super.print(slips);
+        } finally {
+            session.release();
         }
     }
 
@@ -128,9 +166,7 @@ public class ElzabOmega2 implements FiscalPrinter {
             sendToPrinter(new byte[]{0x1B, 0x57});
             waitForAck();
         } finally {
-            if (serialPort != null) {
-                serialPort.close();
-            }
+            session.release();
         }
     }
 
@@ -141,44 +177,53 @@ public class ElzabOmega2 implements FiscalPrinter {
             sendToPrinter(new byte[]{0x1B, 0x25});
             waitForAck();
         } finally {
-            if (serialPort != null) {
-                serialPort.close();
-            }
+            // raport dobowy kończy okres, w którym stawki VAT są niezmienne
+            capabilities.invalidate();
+            session.release();
         }
     }
 
-    private void prepareSerialPort() throws FiscalPrinterException {
-        try {
-            serialPort = PortEnumerator.getSerialPort(comPortName);
-        } catch (Exception e) {
-            throw new FiscalPrinterException("Nie można otworzyć portu: " + e.getMessage());
+    /**
+     * Czeka, aż drukarka skończy drukować poprzedni dokument (bajty statusu
+     * odczytywane przez checkPrinter()).
+     *
+     * @throws FiscalPrinterException gdy drukarka nie jest gotowa przed
+     * upływem READY_TIMEOUT albo wątek został przerwany
+     */
+    private void waitUntilReady() throws FiscalPrinterException {
+        long deadline = System.currentTimeMillis() + READY_TIMEOUT;
+        while (!checkPrinter()) {
+            if (System.currentTimeMillis() >= deadline) {
+                throw new FiscalPrinterException("Drukarka niegotowa");
+            }
+            try {
+                Thread.sleep(READY_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new FiscalPrinterException("Przerwano oczekiwanie na gotowość drukarki");
+            }
         }
+    }
 
-        try {
-            serialPort.setSerialPortParams(9600, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_EVEN);
-            serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_RTSCTS_OUT);
-        } catch (UnsupportedCommOperationException e) {
-            throw new FiscalPrinterException("Nie można otworzyć portu: UnsupportedCommOperationException: " + e.getMessage());
-        }
+    private void prepareSerialPort() throws FiscalPrinterException {
+        session.open();
     }
 
     private void sendToPrinter(byte[] data) throws FiscalPrinterException {
-        int timeout = 5000;
-        try {
-            for (byte b : data) {
-                int bb = BitsAndBytes.promoteByteToInt(b);
-                while (!serialPort.isCTS()) {
-                    try {
-                        Thread.sleep(1);
-                        timeout--;
-                    } catch (InterruptedException iex) {
-                    }
-                    if (timeout == 0) {
-                        throw new FiscalPrinterException("CTS is OFF - timeout");
-                    }
-                }
-                serialPort.getOutputStream().write(bb);
+        long deadline = System.currentTimeMillis() + 5000;
+        // w trakcie ramki linię CTS pilnuje sprzętowa kontrola przepływu
+        // (FLOWCONTROL_RTSCTS_OUT) - czekamy tylko na gotowość przed wysłaniem
+        while (!session.isCTS()) {
+            if (System.currentTimeMillis() >= deadline) {
+                throw new FiscalPrinterException("CTS is OFF - timeout");
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException iex) {
             }
+        }
+        try {
+            frame.reset().append(data).writeTo(session.getOutputStream());
         } catch (IOException e) {
             throw new FiscalPrinterException("Błąd transmisji: " + e.getMessage());
         }
@@ -187,22 +232,14 @@ public class ElzabOmega2 implements FiscalPrinter {
 
     private void waitForAck() throws FiscalPrinterException {
         try {
-            InputStream inputStream = serialPort.getInputStream();
-            long timeOut = 10 * 1000;
-            while (timeOut-- > 0) {
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException ex) {
-                }
-                if (inputStream.available() == 0) {
-                    continue;
-                }
-                if (inputStream.read() == 0x06) {
-                    return;
-                }
-                throw new FiscalPrinterException("NAK received");
+            int answer = session.getReceiveBuffer().read(10 * 1000);
+            if (answer < 0) {
+                throw new FiscalPrinterException("ACK Timeout");
+            }
+            if (answer == 0x06) {
+                return;
             }
-            throw new FiscalPrinterException("ACK Timeout");
+            throw new FiscalPrinterException("NAK received");
         } catch (IOException e) {
             throw new FiscalPrinterException("Błąd transmisji: " + e.getMessage());
         }
@@ -215,23 +252,16 @@ public class ElzabOmega2 implements FiscalPrinter {
     private double rateF = 0x8000 / 10000.0;
     private double rateG = 0x4000 / 10000.0;
     private static double TAX_RATE_ZW = 0x4000 / 10000.0;
+    private Map<VATRate, Integer> vatCodes = new EnumMap<>(VATRate.class);
 
     private void readRates() throws FiscalPrinterException {
         sendToPrinter(new byte[]{0x1B, (byte) 0xd1});
         waitForAck();
         try {
-            InputStream inputStream = serialPort.getInputStream();
-            long timeOut = 10 * 1000;
-            while (timeOut-- > 0) {
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException ex) {
-                }
-                if (inputStream.available() != 14) {
-                    continue;
-                }
+            ReceiveBuffer receiveBuffer = session.getReceiveBuffer();
+            if (receiveBuffer.await(14, 10 * 1000)) {
                 byte[] rates = new byte[14];
-                inputStream.read(rates);
+                receiveBuffer.getInputStream().read(rates);
                 System.out.println(ToString.byteArrayToString(rates));
                 rateA = Integer.parseInt(BitsAndBytes.byteToHexString(rates[0]) + BitsAndBytes.byteToHexString(rates[1]), 16) / 10000.0;
                 rateB = Integer.parseInt(BitsAndBytes.byteToHexString(rates[2]) + BitsAndBytes.byteToHexString(rates[3]), 16) / 10000.0;
@@ -249,14 +279,41 @@ public class ElzabOmega2 implements FiscalPrinter {
         }
     }
 
+    private int readStatusByte() throws IOException {
+        int b = session.getReceiveBuffer().read(1000);
+        if (b < 0) {
+            throw new IOException("Status timeout");
+        }
+        return b;
+    }
+
+    /**
+     * Test łącza dla PortSession: zapytanie o pierwszy bajt statusu (ESC
+     * 0x5B, jak w checkPrinter()) z krótkim czasem oczekiwania. Linia CTS nie
+     * wystarcza - po tcp:// jest zawsze aktywna.
+     *
+     * @param session sesja portu drukarki
+     * @return true, jeśli drukarka odpowiedziała
+     * @throws IOException w przypadku błędu zapisu do portu
+     */
+    private static boolean probe(PortSession session) throws IOException {
+        ReceiveBuffer in = session.getReceiveBuffer();
+        in.clear();
+        OutputStream out = session.getOutputStream();
+        out.write(new byte[]{0x1B, 0x5B});
+        out.flush();
+        int answer = in.read(PROBE_TIMEOUT);
+        // po ACK drukarka przysyła bajt statusu - nie może zostać w buforze
+        return answer >= 0 && (answer != 0x06 || in.read(PROBE_TIMEOUT) >= 0);
+    }
+
     private boolean checkPrinter() throws FiscalPrinterException {
         int byte0, byte1, byte2, byte3, byte4;
 
         sendToPrinter(new byte[]{0x1B, 0x5B});
         waitForAck();
         try {
-            Thread.sleep(10);
-            byte0 = serialPort.getInputStream().read();
+            byte0 = readStatusByte();
         } catch (Exception e) {
             throw new FiscalPrinterException(comPortName);
         }
@@ -264,8 +321,7 @@ public class ElzabOmega2 implements FiscalPrinter {
         sendToPrinter(new byte[]{0x1B, 0x54});
         waitForAck();
         try {
-            Thread.sleep(10);
-            byte1 = serialPort.getInputStream().read();
+            byte1 = readStatusByte();
         } catch (Exception e) {
             throw new FiscalPrinterException(comPortName);
         }
@@ -273,8 +329,7 @@ public class ElzabOmega2 implements FiscalPrinter {
         sendToPrinter(new byte[]{0x1B, 0x55});
         waitForAck();
         try {
-            Thread.sleep(10);
-            byte2 = serialPort.getInputStream().read();
+            byte2 = readStatusByte();
         } catch (Exception e) {
             throw new FiscalPrinterException(comPortName);
         }
@@ -282,8 +337,7 @@ public class ElzabOmega2 implements FiscalPrinter {
         sendToPrinter(new byte[]{0x1B, 0x56});
         waitForAck();
         try {
-            Thread.sleep(10);
-            byte3 = serialPort.getInputStream().read();
+            byte3 = readStatusByte();
         } catch (Exception e) {
             throw new FiscalPrinterException(comPortName);
         }
@@ -291,8 +345,7 @@ public class ElzabOmega2 implements FiscalPrinter {
         sendToPrinter(new byte[]{0x1B, 0x5f});
         waitForAck();
         try {
-            Thread.sleep(10);
-            byte4 = serialPort.getInputStream().read();
+            byte4 = readStatusByte();
         } catch (Exception e) {
             throw new FiscalPrinterException(comPortName);
         }
@@ -422,7 +475,32 @@ public class ElzabOmega2 implements FiscalPrinter {
         return 0;
     }
 
+    private void loadRates(Iterable<SaleLine> lines) throws FiscalPrinterException {
+        Map<VATRate, Integer> codes = capabilities.getVatSlots(lines);
+        if (codes == null) {
+            readRates();
+            codes = new EnumMap<>(VATRate.class);
+            for (VATRate rate : VATRate.values()) {
+                try {
+                    codes.put(rate, (int) decodeRate(rate));
+                } catch (FiscalPrinterException e) {
+                    // stawka nieaktywna w drukarce
+                }
+            }
+            capabilities.setVatSlots(codes);
+        }
+        vatCodes = codes;
+    }
+
     private byte findRate(VATRate rate) throws FiscalPrinterException {
+        Integer code = vatCodes.get(rate);
+        if (code == null) {
+            throw new FiscalPrinterException("Niezdefiniowna stawka: " + rate);
+        }
+        return code.byteValue();
+    }
+
+    private byte decodeRate(VATRate rate) throws FiscalPrinterException {
         if (rate == VATRate.VATzw) {
             return 5; // G
         }
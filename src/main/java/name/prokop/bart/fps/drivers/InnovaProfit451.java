@@ -15,12 +15,15 @@
 package name.prokop.bart.fps.drivers;
 
 import gnu.io.SerialPort;
-import gnu.io.UnsupportedCommOperationException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.List;
 import name.prokop.bart.fps.FiscalPrinter;
 import name.prokop.bart.fps.FiscalPrinterException;
+import name.prokop.bart.fps.PrintResult;
+import name.prokop.bart.fps.comm.FrameBuilder;
+import name.prokop.bart.fps.comm.PortSession;
 import name.prokop.bart.fps.datamodel.Invoice;
 import name.prokop.bart.fps.datamodel.SaleLine;
 import name.prokop.bart.fps.datamodel.Slip;
@@ -28,7 +31,6 @@ import name.prokop.bart.fps.datamodel.SlipExamples;
 import name.prokop.bart.fps.datamodel.SlipPayment;
 import name.prokop.bart.fps.datamodel.VATRate;
 import name.prokop.bart.fps.util.BitsAndBytes;
-import name.prokop.bart.fps.util.PortEnumerator;
 import name.prokop.bart.fps.util.ToString;
 
 /**
@@ -75,9 +77,23 @@ public class InnovaProfit451 implements FiscalPrinter {
      */
     private InnovaProfit451(String comPortName) {
         this.comPortName = comPortName;
+        this.session = PortSession.getSession(comPortName, 9600, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE, SerialPort.FLOWCONTROL_NONE);
+        this.capabilities = DeviceCapabilities.forPort(comPortName);
+        this.session.setStatusProbeIfAbsent(s -> s.probe(0x10, 500));
     }
-    private SerialPort serialPort;
+    private final PortSession session;
+    private final DeviceCapabilities capabilities;
+    /**
+     * Trwa wydruk paczki paragonów - print(Iterable).
+     */
+    private boolean batch;
+    /**
+     * Poprzedni paragon paczki zakończył się poprawnie - drukarka nie wymaga
+     * resetu i ustawienia trybu obsługi błędów.
+     */
+    private boolean prepared;
     private OutputStream outputStream;
+    private final FrameBuilder frame = new FrameBuilder();
     private InputStream inputStream;
 
     /**
@@ -92,20 +108,75 @@ public class InnovaProfit451 implements FiscalPrinter {
         slip = SlipExamples.demo(slip);
         try {
             connect();
-            reset();
-            flushStreams();
-
-            // ustaw pełną, programową obsługę błędów
-            sendLBSERM((byte) 3);
-
-            // jeśli w stanie transakcji, to anuluj istniejącą transakcję
-            if (pflPAR) {
-                sendLBTREXITCAN();
+            boolean ready = prepared;
+            prepared = false;
+            if (!ready) {
+                reset();
+                flushStreams();
+
+                // ustaw pełną, programową obsługę błędów
+                sendLBSERM((byte) 3);
+
+                // jeśli w stanie transakcji, to anuluj istniejącą transakcję
+                if (pflPAR) {
+                    sendLBTREXITCAN();
+                }
             }
 
-            // get all information (status, totals, serial, etc) from printer
-            sendLBFSTRQ((byte) 23);
+            // stawki PTU z pamięci podręcznej, LBFSTRQ tylko gdy ich brak
+            loadPTU(slip.getSlipLines());
             printSlip(slip);
+            // w paczce kolejny paragon nie wymaga ponownego przygotowania drukarki
+            prepared = batch;
+        } catch (FiscalPrinterException e) {
+            capabilities.checkError(e, ThermalResync.VAT_ERRORS);
+            throw e;
+        } finally {
+            disconnect();
+        }
+    }
+
+    /**
+     * Drukuje paragony jeden po drugim w jednym połączeniu z drukarką.
+     * Przygotowanie drukarki (reset, tryb obsługi błędów) wykonywane jest
+     * przed pierwszym paragonem i po każdym nieudanym.
+     *
+     * @param slips paragony do wydrukowania
+     * @return wyniki kolejnych paragonów
+     */
+    @Override
+    public synchronized List<PrintResult> print(Iterable<Slip> slips) {
+        batch = true;
+        try {
+            connect();
+        } catch (FiscalPrinterException e) {
+            // błąd zostanie zgłoszony w wyniku każdego paragonu
+        }
+        try {
+            return FiscalPrinter.super.print(slips);
+        } finally {
+            batch = false;
+            prepared = false;
+            disconnect();
+        }
+    }
+
+    /**
+     * Sprawdza stan drukarki rozkazem DLE, bez drukowania. Niezakończona
+     * transakcja (PAR) nie przeszkadza - print() ją anuluje.
+     *
+     * @return true, jeśli drukarka odpowiada, jest on-line, ma papier i nie
+     * zgłasza błędu mechanizmu
+     * @throws FiscalPrinterException gdy nie da się otworzyć portu
+     */
+    @Override
+    public synchronized boolean isReady() throws FiscalPrinterException {
+        try {
+            connect();
+            flushStreams();
+            printerConnected = false;
+            sendDLE();
+            return printerConnected && pflONL && !pflPE && !pflERR;
         } finally {
             disconnect();
         }
@@ -144,11 +215,8 @@ public class InnovaProfit451 implements FiscalPrinter {
         //sendLBTREXIT(slip.getTotal());
         sendLBTRXEND(slip.getTotal(), slip.getCashbox(), slip.getCashierName(), slip.getReference(), preparePayments(slip));
 
-        //Drukarka jest wolna
-        try {
-            Thread.sleep(4000);
-        } catch (InterruptedException e) {
-        }
+        // zaczekaj na zakończenie wydruku
+        waitUntilIdle(4000);
 
         // otwórz szufladę
         sendLBDSP();
@@ -228,25 +296,13 @@ public class InnovaProfit451 implements FiscalPrinter {
 
     private String readSeq(int timeout) {
         StringBuffer buffer = new StringBuffer();
-        while (timeout-- != 0) {
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-            }
-
-            try {
-                byte[] b;
-                if (inputStream.available() > 0) {
-                    b = new byte[1];
-                    inputStream.read(b, 0, 1);
-                    buffer.append(new String(b));
-                }
-            } catch (IOException e) {
-            }
-
-            if (buffer.indexOf(suffix) != -1) {
-                break;
-            }
+        byte[] seq = null;
+        try {
+            seq = session.getReceiveBuffer().readUntil(suffix.getBytes(), timeout);
+        } catch (IOException e) {
+        }
+        if (seq != null) {
+            buffer.append(new String(seq));
         }
 
         if (buffer.indexOf(prefix) != -1) {
@@ -257,7 +313,7 @@ public class InnovaProfit451 implements FiscalPrinter {
             buffer.delete(buffer.indexOf(suffix), buffer.indexOf(suffix) + 2);
         }
 
-        if (timeout > 0) {
+        if (seq != null) {
             return buffer.toString();
         } else {
             return "";
@@ -265,40 +321,23 @@ public class InnovaProfit451 implements FiscalPrinter {
     }
 
     private void flushStreams() {
-        try {
-            Thread.sleep(200);
-        } catch (InterruptedException e) {
-        }
-        try {
-            while (inputStream.available() > 0) {
-                inputStream.read();
-            }
-        } catch (IOException e) {
-        }
+        session.flushInput();
     }
     private boolean printerConnected;
+    /**
+     * Maksymalny czas oczekiwania na zakończenie wydruku w ms.
+     */
+    private static final long IDLE_TIMEOUT = 10000;
 
-    private void reset() {
-        for (int i = 0; i < 5; i++) {
-            sendCAN();
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-            }
+    private void waitUntilIdle(long fallback) {
+        if (!printerConnected) {
+            return;
         }
+        ThermalResync.waitUntilIdle(session, IDLE_TIMEOUT, fallback, b -> decodeDLE((byte) b), b -> decodeENQ((byte) b));
+    }
 
-        for (int i = 0; i < 3; i++) {
-            sendDLE();
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-            }
-            sendENQ();
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-            }
-        }
+    private void reset() {
+        printerConnected = ThermalResync.reset(session, 5, b -> decodeDLE((byte) b), b -> decodeENQ((byte) b)) > 0;
     }
 
     private byte decodeLBERSTS(String seq) {
@@ -317,17 +356,14 @@ public class InnovaProfit451 implements FiscalPrinter {
         }
 
         byte[] seq = ("0$e").getBytes();
-        sendPrefix();
         try {
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTREXITCAN " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTREXITCAN " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -340,17 +376,14 @@ public class InnovaProfit451 implements FiscalPrinter {
         }
 
         byte[] seq = ("1$d").getBytes();
-        sendPrefix();
         try {
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBDSP " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBDSP " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -363,17 +396,14 @@ public class InnovaProfit451 implements FiscalPrinter {
         }
 
         byte[] seq = (pl + "$h").getBytes();
-        sendPrefix();
         try {
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRSHDR " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRSHDR " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -387,18 +417,15 @@ public class InnovaProfit451 implements FiscalPrinter {
 
         //byte[] seq = (slipLineNo+"$l"+name+"\r"+amount+"\r"+vatRate+"/"+price+"/"+gross+"/").getBytes();
         byte[] seq = ToString.string2Mazovia(slipLineNo + "$l" + name + "\r" + amount + "\r" + vatRate + "/" + price + "/" + gross + "/");
-        sendPrefix();
         try {
             //System.err.println(new String(seq));
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(2000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRSLN " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRSLN " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -425,18 +452,15 @@ public class InnovaProfit451 implements FiscalPrinter {
                 total + "/" // total
         );
 
-        sendPrefix();
         try {
             //System.err.println(new String(seq));
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(15000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRXEND1 " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRXEND1 " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -480,18 +504,15 @@ public class InnovaProfit451 implements FiscalPrinter {
                 "0/" // Reszta
         );
 
-        sendPrefix();
         try {
             //System.err.println(new String(seq));
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(10000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRXEND " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRXEND " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -541,18 +562,15 @@ public class InnovaProfit451 implements FiscalPrinter {
                 amount + "/" // Kwota/wartość transakcji
         );
 
-        sendPrefix();
         try {
             System.err.println(new String(seq));
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(10000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRSCARD " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRSCARD " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -565,19 +583,16 @@ public class InnovaProfit451 implements FiscalPrinter {
         }
 
         byte[] seq = (ps + "#e").getBytes();
-        sendPrefix();
         try {
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
             System.err.println("Ostatni bład: " + err + " : " + getErrDescription(err));
         }
-        //    throw new FiscalPrinterException("sendLBSERM " + this + " " + getErrDescription(err));
+        //    throw new FiscalPrinterException("sendLBSERM " + this + " " + getErrDescription(err), Byte.toString(err));
 
         sendDLE();
         sendENQ();
@@ -589,19 +604,17 @@ public class InnovaProfit451 implements FiscalPrinter {
         }
 
         byte[] seq = (ps + "#s").getBytes();
-        sendPrefix();
         try {
-            outputStream.write(seq);
-            //outputStream.write(calculateCC(seq));
+            // rozkaz bez sumy kontrolnej
+            sendFrame(seq, false);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         decodeLBFSTRQ(readSeq(1000));
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBFSTRQ " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBFSTRQ " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -615,6 +628,23 @@ public class InnovaProfit451 implements FiscalPrinter {
     private VATRate ptuF;
     private VATRate ptuG;
 
+    private void loadPTU(Iterable<SaleLine> lines) throws FiscalPrinterException {
+        VATRate[] ptu = capabilities.getVatTable(7, lines);
+        if (ptu == null) {
+            // get all information (status, totals, serial, etc) from printer
+            sendLBFSTRQ((byte) 23);
+            capabilities.setVatTable(ptuA, ptuB, ptuC, ptuD, ptuE, ptuF, ptuG);
+            return;
+        }
+        ptuA = ptu[0];
+        ptuB = ptu[1];
+        ptuC = ptu[2];
+        ptuD = ptu[3];
+        ptuE = ptu[4];
+        ptuF = ptu[5];
+        ptuG = ptu[6];
+    }
+
     private void decodeLBFSTRQ(String seq) {
         //System.err.println(seq);
 
@@ -721,17 +751,7 @@ public class InnovaProfit451 implements FiscalPrinter {
     }
 
     private boolean waitForOneByte() throws IOException {
-        int t = 2000;
-        while (t-- != 0) {
-            if (inputStream.available() >= 1) {
-                return true;
-            }
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-            }
-        }
-        return false;
+        return session.getReceiveBuffer().await(1, 2000);
     }
 
     /**
@@ -782,6 +802,7 @@ public class InnovaProfit451 implements FiscalPrinter {
 
         try {
             outputStream.write(0x05);
+            outputStream.flush();
             if (waitForOneByte()) {
                 decodeENQ((byte) inputStream.read());
             }
@@ -792,6 +813,7 @@ public class InnovaProfit451 implements FiscalPrinter {
     private void sendBEL() {
         try {
             outputStream.write(0x07);
+            outputStream.flush();
         } catch (IOException e) {
         }
     }
@@ -799,6 +821,7 @@ public class InnovaProfit451 implements FiscalPrinter {
     private void sendDLE() {
         try {
             outputStream.write(0x10);
+            outputStream.flush();
             if (waitForOneByte()) {
                 printerConnected = true;
                 decodeDLE((byte) inputStream.read());
@@ -812,6 +835,7 @@ public class InnovaProfit451 implements FiscalPrinter {
     private void sendCAN() {
         try {
             outputStream.write(0x18);
+            outputStream.flush();
         } catch (IOException e) {
         }
     }
@@ -843,47 +867,25 @@ public class InnovaProfit451 implements FiscalPrinter {
      * @return
      */
     private void connect() throws FiscalPrinterException {
-        try {
-            serialPort = PortEnumerator.getSerialPort(comPortName);
-        } catch (Exception e) {
-            throw new FiscalPrinterException("Nie można otworzyć portu: " + e.getMessage());
-        }
-
-        try {
-            serialPort.setSerialPortParams(9600,
-                    SerialPort.DATABITS_8,
-                    SerialPort.STOPBITS_1,
-                    SerialPort.PARITY_NONE);
-            serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
-
-            outputStream = serialPort.getOutputStream();
-            inputStream = serialPort.getInputStream();
-        } catch (UnsupportedCommOperationException e) {
-            throw new FiscalPrinterException("Nie można otworzyć portu: UnsupportedCommOperationException: " + e.getMessage());
-        } catch (IOException e) {
-            throw new FiscalPrinterException("Nie można otworzyć portu: IOException: " + e.getMessage());
-        }
+        session.open();
+        outputStream = session.getOutputStream();
+        inputStream = session.getInputStream();
     }
 
     private void disconnect() {
-        if (serialPort!=null)
-            serialPort.close();
+        session.release();
     }
 
-    private void sendPrefix() {
-        try {
-            outputStream.write(0x1B);
-            outputStream.write(0x50);
-        } catch (IOException e) {
-        }
+    private void sendFrame(byte[] seq) throws IOException {
+        sendFrame(seq, true);
     }
 
-    private void sendSuffix() {
-        try {
-            outputStream.write(0x1B);
-            outputStream.write(0x5C);
-        } catch (IOException e) {
+    private void sendFrame(byte[] seq, boolean withCC) throws IOException {
+        frame.reset().append(0x1B).append(0x50).append(seq);
+        if (withCC) {
+            frame.append(calculateCC(seq));
         }
+        frame.append(0x1B).append(0x5C).writeTo(outputStream);
     }
 
     /**
@@ -15,14 +15,18 @@
 package name.prokop.bart.fps.drivers;
 
 import gnu.io.SerialPort;
-import gnu.io.UnsupportedCommOperationException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import name.prokop.bart.fps.FiscalPrinter;
 import name.prokop.bart.fps.FiscalPrinterException;
+import name.prokop.bart.fps.PrintResult;
+import name.prokop.bart.fps.comm.FrameBuilder;
+import name.prokop.bart.fps.comm.PortSession;
+import name.prokop.bart.fps.comm.ReceiveBuffer;
 import name.prokop.bart.fps.datamodel.Invoice;
 import name.prokop.bart.fps.datamodel.SaleLine;
 import name.prokop.bart.fps.datamodel.Slip;
@@ -30,7 +34,6 @@ import name.prokop.bart.fps.datamodel.SlipExamples;
 import name.prokop.bart.fps.datamodel.SlipPayment;
 import name.prokop.bart.fps.datamodel.VATRate;
 import name.prokop.bart.fps.util.BitsAndBytes;
-import name.prokop.bart.fps.util.PortEnumerator;
 import name.prokop.bart.fps.util.ToString;
 
 /**
@@ -82,9 +85,23 @@ public class OptimusVivo implements FiscalPrinter {
      */
     private OptimusVivo(String comPortName) {
         this.comPortName = comPortName;
+        this.session = PortSession.getSession(comPortName, 9600, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE, SerialPort.FLOWCONTROL_NONE);
+        this.capabilities = DeviceCapabilities.forPort(comPortName);
+        this.session.setStatusProbeIfAbsent(s -> s.probe(0x10, 500));
     }
-    private SerialPort serialPort;
+    private final PortSession session;
+    private final DeviceCapabilities capabilities;
+    /**
+     * Trwa wydruk paczki paragonów - print(Iterable).
+     */
+    private boolean batch;
+    /**
+     * Poprzedni paragon paczki zakończył się poprawnie - drukarka nie wymaga
+     * resetu i ustawienia trybu obsługi błędów.
+     */
+    private boolean prepared;
     private OutputStream outputStream;
+    private final FrameBuilder frame = new FrameBuilder();
     private InputStream inputStream;
 
     /**
@@ -99,21 +116,29 @@ public class OptimusVivo implements FiscalPrinter {
         slip = SlipExamples.demo(slip);
         try {
             connect();
-            flushStreams();
-            reset();
-
-            // ustaw pełną, programową obsługę błędów
-            sendLBSERM((byte) 3);
-
-            // jeśli w stanie transakcji, to anuluj istniejącą transakcję
-            if (pflPAR) {
-                sendLBTREXITCAN();
+            boolean ready = prepared;
+            prepared = false;
+            if (!ready) {
+                flushStreams();
+                reset();
+
+                // ustaw pełną, programową obsługę błędów
+                sendLBSERM((byte) 3);
+
+                // jeśli w stanie transakcji, to anuluj istniejącą transakcję
+                if (pflPAR) {
+                    sendLBTREXITCAN();
+                }
             }
 
-            // get all information (status, totals, serial, etc) from printer
-            sendLBFSTRQ((byte) 23);
-
+            // stawki PTU z pamięci podręcznej, LBFSTRQ tylko gdy ich brak
+            loadPTU(slip.getSlipLines());
             printSlip(slip);
+            // w paczce kolejny paragon nie wymaga ponownego przygotowania drukarki
+            prepared = batch;
+        } catch (FiscalPrinterException e) {
+            capabilities.checkError(e, ThermalResync.VAT_ERRORS);
+            throw e;
         } finally {
             disconnect();
             //Do testów jak się wysyła.
@@ -121,6 +146,52 @@ public class OptimusVivo implements FiscalPrinter {
         }
     }
 
+    /**
+     * Drukuje paragony jeden po drugim w jednym połączeniu z drukarką.
+     * Przygotowanie drukarki (reset, tryb obsługi błędów) wykonywane jest
+     * przed pierwszym paragonem i po każdym nieudanym.
+     *
+     * @param slips paragony do wydrukowania
+     * @return wyniki kolejnych paragonów
+     */
+    @Override
+    public synchronized List<PrintResult> print(Iterable<Slip> slips) {
+        batch = true;
+        try {
+            connect();
+        } catch (FiscalPrinterException e) {
+            // błąd zostanie zgłoszony w wyniku każdego paragonu
+        }
+        try {
+            return FiscalPrinter.super.print(slips);
+        } finally {
+            batch = false;
+            prepared = false;
+            disconnect();
+        }
+    }
+
+    /**
+     * Sprawdza stan drukarki rozkazem DLE, bez drukowania. Niezakończona
+     * transakcja (PAR) nie przeszkadza - print() ją anuluje.
+     *
+     * @return true, jeśli drukarka odpowiada, jest on-line, ma papier i nie
+     * zgłasza błędu mechanizmu
+     * @throws FiscalPrinterException gdy nie da się otworzyć portu
+     */
+    @Override
+    public synchronized boolean isReady() throws FiscalPrinterException {
+        try {
+            connect();
+            flushStreams();
+            printerConnected = false;
+            sendDLE();
+            return printerConnected && pflONL && !pflPE && !pflERR;
+        } finally {
+            disconnect();
+        }
+    }
+
     @Override
     public void print(Invoice invoice) throws FiscalPrinterException {
         throw new FiscalPrinterException(new UnsupportedOperationException("Not supported yet."));
@@ -216,25 +287,13 @@ public class OptimusVivo implements FiscalPrinter {
 
     private String readSeq(int timeout) {
         StringBuilder buffer = new StringBuilder();
-        while (timeout-- != 0) {
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-            }
-
-            try {
-                byte[] b;
-                if (inputStream.available() > 0) {
-                    b = new byte[1];
-                    inputStream.read(b, 0, 1);
-                    buffer.append(new String(b));
-                }
-            } catch (IOException e) {
-            }
-
-            if (buffer.indexOf(suffix) != -1) {
-                break;
-            }
+        byte[] seq = null;
+        try {
+            seq = session.getReceiveBuffer().readUntil(suffix.getBytes(), timeout);
+        } catch (IOException e) {
+        }
+        if (seq != null) {
+            buffer.append(new String(seq));
         }
 
         if (buffer.indexOf(prefix) != -1) {
@@ -246,7 +305,7 @@ public class OptimusVivo implements FiscalPrinter {
         }
 
         //System.err.println(buffer);
-        if (timeout > 0) {
+        if (seq != null) {
             return buffer.toString();
         } else {
             return "";
@@ -254,40 +313,12 @@ public class OptimusVivo implements FiscalPrinter {
     }
 
     private void flushStreams() {
-        try {
-            Thread.sleep(200);
-        } catch (InterruptedException e) {
-        }
-        try {
-            while (inputStream.available() > 0) {
-                inputStream.read();
-            }
-        } catch (IOException e) {
-        }
+        session.flushInput();
     }
     private boolean printerConnected;
 
     private void reset() {
-        for (int i = 0; i < 3; i++) {
-            sendCAN();
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-            }
-        }
-
-        for (int i = 0; i < 2; i++) {
-            sendDLE();
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-            }
-            sendENQ();
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-            }
-        }
+        printerConnected = ThermalResync.reset(session, 3, b -> decodeDLE((byte) b), b -> decodeENQ((byte) b)) > 0;
     }
 
     private byte decodeLBERSTS(String seq) {
@@ -306,28 +337,20 @@ public class OptimusVivo implements FiscalPrinter {
         }
 
         byte[] seq = ("0$e").getBytes();
-        sendPrefix();
         try {
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTREXITCAN " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTREXITCAN " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
         sendENQ();
 
-        try {
-            while (inputStream.available() > 0) {
-                inputStream.read();
-            }
-        } catch (IOException e) {
-        }
+        session.flushInput();
     }
 
     private void sendLBDSP() throws FiscalPrinterException {
@@ -336,17 +359,14 @@ public class OptimusVivo implements FiscalPrinter {
         }
 
         byte[] seq = ("1$d").getBytes();
-        sendPrefix();
         try {
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBDSP " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBDSP " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -359,17 +379,14 @@ public class OptimusVivo implements FiscalPrinter {
         }
 
         byte[] seq = (pl + "$h").getBytes();
-        sendPrefix();
         try {
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRSHDR " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRSHDR " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -387,18 +404,15 @@ public class OptimusVivo implements FiscalPrinter {
             discount *= 100.0;
         }
         byte[] seq = ToString.string2Mazovia(slipLineNo + ";" + discountType + "$l" + name + "\r" + amount + "\r" + vatRate + "/" + price + "/" + gross + "/" + discount + "/");
-        sendPrefix();
         try {
             //System.err.println(new String(seq));
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(2000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRSLN " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRSLN " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -460,18 +474,15 @@ public class OptimusVivo implements FiscalPrinter {
                 "0/" // RESZTA
         );
 
-        sendPrefix();
         try {
             //System.err.println(new String(seq));
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(10000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRXEND1 " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRXEND1 " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -479,11 +490,8 @@ public class OptimusVivo implements FiscalPrinter {
     }
 
     private void showSerialStatus() {
-        try {
-            Thread.sleep(2000);
-            System.out.println("Wolne bajty: " + inputStream.available());
-        } catch (IOException | InterruptedException e) {
-        }
+        boolean idle = ThermalResync.waitUntilIdle(session, 2000, 2000, b -> decodeDLE((byte) b), b -> decodeENQ((byte) b));
+        System.out.println("Drukarka " + (idle ? "gotowa" : "zajęta") + ": " + this);
     }
 
     private void sendLBSERM(byte ps) throws FiscalPrinterException {
@@ -492,17 +500,14 @@ public class OptimusVivo implements FiscalPrinter {
         }
 
         byte[] seq = (ps + "#e").getBytes();
-        sendPrefix();
         try {
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBSERM " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBSERM " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -517,19 +522,17 @@ public class OptimusVivo implements FiscalPrinter {
         }
 
         byte[] seq = (ps + "#s").getBytes();
-        sendPrefix();
         try {
-            outputStream.write(seq);
-            //outputStream.write(calculateCC(seq));
+            // rozkaz bez sumy kontrolnej
+            sendFrame(seq, false);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         decodeLBFSTRQ(readSeq(1000));
 
 //        byte err = decodeLBERSTS(readSeq(5000));
 //        if (err != 0)
-//            throw new FiscalPrinterException("sendLBFSTRQ " + this + " "+ getErrDescription(err));
+//            throw new FiscalPrinterException("sendLBFSTRQ " + this + " "+ getErrDescription(err), Byte.toString(err));
 //            System.err.println("1111");
         sendDLE();
         sendENQ();
@@ -542,6 +545,23 @@ public class OptimusVivo implements FiscalPrinter {
     private VATRate ptuF;
     private VATRate ptuG;
 
+    private void loadPTU(Iterable<SaleLine> lines) throws FiscalPrinterException {
+        VATRate[] ptu = capabilities.getVatTable(7, lines);
+        if (ptu == null) {
+            // get all information (status, totals, serial, etc) from printer
+            sendLBFSTRQ((byte) 23);
+            capabilities.setVatTable(ptuA, ptuB, ptuC, ptuD, ptuE, ptuF, ptuG);
+            return;
+        }
+        ptuA = ptu[0];
+        ptuB = ptu[1];
+        ptuC = ptu[2];
+        ptuD = ptu[3];
+        ptuE = ptu[4];
+        ptuF = ptu[5];
+        ptuG = ptu[6];
+    }
+
     private void decodeLBFSTRQ(String seq) {
         seq = seq.substring(seq.indexOf('/') + 1);
         ptuA = decodeLBFSTRQ_PTU(seq.substring(0, seq.indexOf('/')));
@@ -596,17 +616,7 @@ public class OptimusVivo implements FiscalPrinter {
     }
 
     private boolean waitForOneByte() throws IOException {
-        int t = 2000;
-        while (t-- != 0) {
-            if (inputStream.available() >= 1) {
-                return true;
-            }
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-            }
-        }
-        return false;
+        return session.getReceiveBuffer().await(1, 2000);
     }
 
     /**
@@ -657,6 +667,7 @@ public class OptimusVivo implements FiscalPrinter {
 
         try {
             outputStream.write(0x05);
+            outputStream.flush();
             if (waitForOneByte()) {
                 decodeENQ(readOneByteAnswer());
             }
@@ -670,21 +681,19 @@ public class OptimusVivo implements FiscalPrinter {
     private byte readOneByteAnswer() {
         byte answer = 0x00;
         try {
-            if (inputStream.available() == 0) {
-                Thread.sleep(150);
-            }
-            answer = (byte) inputStream.read();
-            Thread.sleep(100);
+            ReceiveBuffer receiveBuffer = session.getReceiveBuffer();
+            answer = (byte) receiveBuffer.read(150);
             if (answer == 0x1b) {
-                while (inputStream.available() > 0) {
-                    answer = (byte) inputStream.read();
+                // odpowiedź poprzedzona sekwencją ESC - liczy się ostatni bajt
+                long gap = TimeUnit.NANOSECONDS.toMillis(session.getQuietGap()) + 1;
+                int b;
+                while ((b = receiveBuffer.read(gap)) >= 0) {
+                    answer = (byte) b;
                 }
             } else {
-                while (inputStream.available() > 0) {
-                    inputStream.read();
-                }
+                session.flushInput();
             }
-        } catch (IOException | InterruptedException e) {
+        } catch (IOException e) {
         }
         return answer;
     }
@@ -692,6 +701,7 @@ public class OptimusVivo implements FiscalPrinter {
     private void sendBEL() {
         try {
             outputStream.write(0x07);
+            outputStream.flush();
         } catch (IOException e) {
         }
         readOneByteAnswer();
@@ -700,6 +710,7 @@ public class OptimusVivo implements FiscalPrinter {
     private void sendDLE() {
         try {
             outputStream.write(0x10);
+            outputStream.flush();
             if (waitForOneByte()) {
                 printerConnected = true;
                 decodeDLE(readOneByteAnswer());
@@ -713,6 +724,7 @@ public class OptimusVivo implements FiscalPrinter {
     private void sendCAN() {
         try {
             outputStream.write(0x18);
+            outputStream.flush();
         } catch (IOException e) {
         }
         readOneByteAnswer();
@@ -747,47 +759,25 @@ public class OptimusVivo implements FiscalPrinter {
      * @return
      */
     private void connect() throws FiscalPrinterException {
-        try {
-            serialPort = PortEnumerator.getSerialPort(comPortName);
-        } catch (Exception e) {
-            throw new FiscalPrinterException("Nie można otworzyć portu: " + e.getMessage());
-        }
-
-        try {
-            serialPort.setSerialPortParams(9600,
-                    SerialPort.DATABITS_8,
-                    SerialPort.STOPBITS_1,
-                    SerialPort.PARITY_NONE);
-            serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
-
-            outputStream = serialPort.getOutputStream();
-            inputStream = serialPort.getInputStream();
-        } catch (UnsupportedCommOperationException e) {
-            throw new FiscalPrinterException("Nie można otworzyć portu: UnsupportedCommOperationException: " + e.getMessage());
-        } catch (IOException e) {
-            throw new FiscalPrinterException("Nie można otworzyć portu: IOException: " + e.getMessage());
-        }
+        session.open();
+        outputStream = session.getOutputStream();
+        inputStream = session.getInputStream();
     }
 
     private void disconnect() {
-        if (serialPort!=null)
-            serialPort.close();
+        session.release();
     }
 
-    private void sendPrefix() {
-        try {
-            outputStream.write(0x1B);
-            outputStream.write(0x50);
-        } catch (IOException e) {
-        }
+    private void sendFrame(byte[] seq) throws IOException {
+        sendFrame(seq, true);
     }
 
-    private void sendSuffix() {
-        try {
-            outputStream.write(0x1B);
-            outputStream.write(0x5C);
-        } catch (IOException e) {
+    private void sendFrame(byte[] seq, boolean withCC) throws IOException {
+        frame.reset().append(0x1B).append(0x50).append(seq);
+        if (withCC) {
+            frame.append(calculateCC(seq));
         }
+        frame.append(0x1B).append(0x5C).writeTo(outputStream);
     }
 
     /**
@@ -17,16 +17,19 @@
 package name.prokop.bart.fps.drivers;
 
 import gnu.io.SerialPort;
-import gnu.io.UnsupportedCommOperationException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
 import name.prokop.bart.fps.FiscalPrinter;
 import name.prokop.bart.fps.FiscalPrinterException;
+import name.prokop.bart.fps.PrintResult;
+import name.prokop.bart.fps.comm.PortSession;
 import name.prokop.bart.fps.datamodel.Invoice;
 import name.prokop.bart.fps.datamodel.Slip;
 import name.prokop.bart.fps.datamodel.SlipExamples;
-import name.prokop.bart.fps.util.PortEnumerator;
+import name.prokop.bart.fps.datamodel.SlipStream;
 
 /**
  * Klasa implementująca obsługę drukarki fiskalnej POSNET THERMAL z protokołem w
@@ -38,7 +41,8 @@ import name.prokop.bart.fps.util.PortEnumerator;
 public class Posnet101 implements FiscalPrinter {
 
     private String comPortName;
-    private SerialPort serialPort;
+    private final PortSession session;
+    private final DeviceCapabilities capabilities;
     private final String footerLine1;
     private final String footerLine2;
     private final String footerLine3;
@@ -85,6 +89,9 @@ public class Posnet101 implements FiscalPrinter {
      */
     private Posnet101(String comPortName) {
         this.comPortName = comPortName;
+        this.session = PortSession.getSession(comPortName, 9600, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE, SerialPort.FLOWCONTROL_XONXOFF_OUT | SerialPort.FLOWCONTROL_XONXOFF_IN);
+        this.capabilities = DeviceCapabilities.forPort(comPortName);
+        this.session.setStatusProbeIfAbsent(s -> new Posnet101Driver(s.getInputStream(), s.getOutputStream(), capabilities).probe(500));
         footerLine1 = "&b&c&hDziękujemy";
         footerLine2 = "&c&bZapraszamy ponownie";
         footerLine3 = "&i&cPosnet 1.01";
@@ -102,41 +109,122 @@ public class Posnet101 implements FiscalPrinter {
         slip = SlipExamples.demo(slip);
         try {
             connect();
-            Posnet101Driver driver = new Posnet101Driver(getInputStream(), getOutputStream());
+            Posnet101Driver driver = new Posnet101Driver(getInputStream(), getOutputStream(), capabilities);
             driver.setFooterLine1(footerLine1);
             driver.setFooterLine2(footerLine2);
             driver.setFooterLine3(footerLine3);
+            driver.setAppliedConfiguration(session.getAttribute(Posnet101Driver.class.getName() + ".ftrcfg", HashMap::new));
             driver.printSlip(slip);
         } catch (IOException ioe) {
+            capabilities.checkError(ioe, Posnet101Driver.VAT_ERRORS);
+            checkLinkFailure(ioe);
             throw new FiscalPrinterException(ioe);
         } finally {
             disconnect();
         }
     }
 
+    /**
+     * Drukuje paragon odczytywany ze strumienia - każda pozycja jest wysyłana
+     * do drukarki zaraz po odczytaniu, a kolejna jest odczytywana w czasie,
+     * gdy drukarka przetwarza poprzednią.
+     *
+     * @param slip źródło paragonu
+     * @throws name.prokop.bart.fps.FiscalPrinterException w
+     * przypadku niepowodzenia, wraz z opisem błędu
+     */
+    @Override
+    public synchronized void print(SlipStream slip) throws FiscalPrinterException {
+        if (SlipExamples.isDemo()) {
+            print(SlipExamples.getUnlicensed());
+            return;
+        }
+        try {
+            connect();
+            Posnet101Driver driver = new Posnet101Driver(getInputStream(), getOutputStream(), capabilities);
+            driver.setFooterLine1(footerLine1);
+            driver.setFooterLine2(footerLine2);
+            driver.setFooterLine3(footerLine3);
+            driver.setAppliedConfiguration(session.getAttribute(Posnet101Driver.class.getName() + ".ftrcfg", HashMap::new));
+            driver.printSlip(slip);
+        } catch (IOException ioe) {
+            capabilities.checkError(ioe, Posnet101Driver.VAT_ERRORS);
+            checkLinkFailure(ioe);
+            throw new FiscalPrinterException(ioe);
+        } finally {
+            disconnect();
+        }
+    }
+
+    /**
+     * Drukuje paragony jeden po drugim, nie zamykając portu pomiędzy nimi.
+     *
+     * @param slips paragony do wydrukowania
+     * @return wyniki kolejnych paragonów
+     */
+    @Override
+    public synchronized List<PrintResult> print(Iterable<Slip> slips) {
+        try {
+            connect();
+        } catch (FiscalPrinterException e) {
+            // błąd zostanie zgłoszony w wyniku każdego paragonu
+        }
+        try {
+            return FiscalPrinter.super.print(slips);
+        } finally {
+            disconnect();
+        }
+    }
+
     @Override
     public void print(Invoice invoice) throws FiscalPrinterException {
         try {
             connect();
-            Posnet101Driver driver = new Posnet101Driver(getInputStream(), getOutputStream());
+            Posnet101Driver driver = new Posnet101Driver(getInputStream(), getOutputStream(), capabilities);
             driver.setFooterLine1(footerLine1);
             driver.setFooterLine2(footerLine2);
             driver.setFooterLine3(footerLine3);
+            driver.setAppliedConfiguration(session.getAttribute(Posnet101Driver.class.getName() + ".ftrcfg", HashMap::new));
             driver.printInvoice(invoice);
         } catch (IOException ioe) {
+            capabilities.checkError(ioe, Posnet101Driver.VAT_ERRORS);
+            checkLinkFailure(ioe);
             throw new FiscalPrinterException(ioe);
         } finally {
             disconnect();
         }
     }
 
+    /**
+     * Sprawdza gotowość drukarki (sdev, sprn) bez drukowania.
+     *
+     * @return true, jeśli drukarka może przyjąć paragon
+     * @throws name.prokop.bart.fps.FiscalPrinterException gdy drukarka nie
+     * odpowiada
+     */
+    @Override
+    public synchronized boolean isReady() throws FiscalPrinterException {
+        try {
+            connect();
+            return new Posnet101Driver(getInputStream(), getOutputStream(), capabilities).isReady();
+        } catch (FiscalPrinterException e) {
+            if (e.getCause() instanceof IOException) {
+                checkLinkFailure((IOException) e.getCause());
+            }
+            throw e;
+        } finally {
+            disconnect();
+        }
+    }
+
     @Override
     public synchronized void openDrawer() throws FiscalPrinterException {
         try {
             connect();
-            Posnet101Driver driver = new Posnet101Driver(getInputStream(), getOutputStream());
+            Posnet101Driver driver = new Posnet101Driver(getInputStream(), getOutputStream(), capabilities);
             driver.openDrawer();
         } catch (IOException ioe) {
+            checkLinkFailure(ioe);
             throw new FiscalPrinterException(ioe);
         } finally {
             disconnect();
@@ -147,41 +235,45 @@ public class Posnet101 implements FiscalPrinter {
     public void printDailyReport() throws FiscalPrinterException {
         try {
             connect();
-            Posnet101Driver driver = new Posnet101Driver(getInputStream(), getOutputStream());
+            Posnet101Driver driver = new Posnet101Driver(getInputStream(), getOutputStream(), capabilities);
             driver.printDailyReport();
         } catch (IOException ioe) {
+            checkLinkFailure(ioe);
             throw new FiscalPrinterException(ioe);
         } finally {
+            // raport dobowy kończy okres, w którym stawki VAT są niezmienne
+            capabilities.invalidate();
             disconnect();
         }
     }
 
-    private InputStream getInputStream() throws IOException {
-        return serialPort.getInputStream();
+    private InputStream getInputStream() {
+        return session.getInputStream();
     }
 
-    private OutputStream getOutputStream() throws IOException {
-        return serialPort.getOutputStream();
+    private OutputStream getOutputStream() {
+        return session.getOutputStream();
     }
 
-    private void connect() throws FiscalPrinterException {
-        try {
-            serialPort = PortEnumerator.getSerialPort(comPortName);
-        } catch (Exception e) {
-            throw new FiscalPrinterException("Nie można otworzyć portu: " + e.getMessage());
+    /**
+     * Brak odpowiedzi lub błąd transmisji (w odróżnieniu od błędu zgłoszonego
+     * przez drukarkę) powoduje ponowne otwarcie portu przy następnym wywołaniu.
+     */
+    private void checkLinkFailure(IOException e) {
+        Throwable t = e;
+        while (t instanceof FiscalPrinterException && t.getCause() instanceof IOException) {
+            t = t.getCause();
         }
-
-        try {
-            serialPort.setSerialPortParams(9600, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
-            serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_XONXOFF_OUT | SerialPort.FLOWCONTROL_XONXOFF_IN);
-        } catch (UnsupportedCommOperationException e) {
-            throw new FiscalPrinterException("Nie można otworzyć portu: UnsupportedCommOperationException: " + e.getMessage());
+        if (!(t instanceof FiscalPrinterException)) {
+            session.invalidate();
         }
     }
 
+    private void connect() throws FiscalPrinterException {
+        session.open();
+    }
+
     private void disconnect() {
-        if (serialPort != null) {
-            serialPort.close();
-        }
+        session.release();
     }
 }
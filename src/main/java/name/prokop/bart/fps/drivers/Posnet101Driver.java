@@ -21,17 +21,26 @@ import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Calendar;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.logging.Logger;
 import name.prokop.bart.fps.FiscalPrinterException;
+import name.prokop.bart.fps.comm.FrameBuilder;
+import name.prokop.bart.fps.comm.ReceiveBuffer;
 import name.prokop.bart.fps.datamodel.Invoice;
 import name.prokop.bart.fps.datamodel.SaleLine;
 import name.prokop.bart.fps.datamodel.Slip;
 import name.prokop.bart.fps.datamodel.SlipPayment;
+import name.prokop.bart.fps.datamodel.SlipStream;
 import name.prokop.bart.fps.datamodel.VATRate;
 import name.prokop.bart.fps.util.BartDate;
 import name.prokop.bart.fps.util.BitsAndBytes;
@@ -50,9 +59,16 @@ public class Posnet101Driver {
     private static final int STX = 0x02;
     private static final int ETX = 0x03;
     private static final char TAB = 0x09;
+    /**
+     * Numery błędów dotyczące stawek VAT (patrz errors).
+     */
+    static final Set<String> VAT_ERRORS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("703", "2000", "2004", "2102", "2103", "2105", "2523", "2701")));
     private Map<VATRate, Integer> vatRates = new EnumMap<>(VATRate.class);
-    private final InputStream inputStream;
+    private final ReceiveBuffer receiveBuffer;
     private final OutputStream outputStream;
+    private final FrameBuilder frame = new FrameBuilder();
+    private final DeviceCapabilities capabilities;
+    private Map<String, String> appliedConfiguration = new HashMap<>();
     private String footerLine1 = "&b&c&hDziękujemy";
     private String footerLine2 = "&c&bZapraszamy ponownie";
     private String footerLine3 = "&i&cPosnet 1.01, (c) Bart Prokop";
@@ -61,12 +77,14 @@ public class Posnet101Driver {
      * Tworzy obiekt zdolny do wymuszenia na drukarce fiskalnej Posnet 1.01
      * wydruku paragonu fiskalnego, zapisanego w klasie Slip
      *
-     * @param comPortName Nazwa portu szeregowego, do którego jest przyłączona
-     * drukarka fiskalna.
+     * @param inputStream strumień odbiorczy portu
+     * @param outputStream strumień nadawczy portu
+     * @param capabilities zapamiętane parametry drukarki
      */
-    Posnet101Driver(InputStream inputStream, OutputStream outputStream) {
-        this.inputStream = inputStream;
+    Posnet101Driver(InputStream inputStream, OutputStream outputStream, DeviceCapabilities capabilities) {
+        this.receiveBuffer = ReceiveBuffer.of(inputStream);
         this.outputStream = outputStream;
+        this.capabilities = capabilities;
     }
 
     /**
@@ -98,6 +116,43 @@ public class Posnet101Driver {
         }
     }
 
+    /**
+     * Sprawdza gotowość drukarki zapytaniami sdev i sprn, bez drukowania.
+     *
+     * @return true, jeśli drukarka nie jest w menu, nie czeka na reakcję
+     * użytkownika i jej mechanizm jest sprawny (papier, pokrywa, dźwignia)
+     * @throws FiscalPrinterException w przypadku błędu komunikacji
+     */
+    public synchronized boolean isReady() throws FiscalPrinterException {
+        try {
+            Properties[] answers = query("sdev", "sprn");
+            return "0".equals(answers[0].getProperty("ds")) && "0".equals(answers[1].getProperty("pr"));
+        } catch (IOException e) {
+            throw new FiscalPrinterException(e);
+        }
+    }
+
+    /**
+     * Test łącza dla PortSession: rozkaz sdev z krótkim czasem oczekiwania.
+     * Odpowiedź z kodem błędu też oznacza, że drukarka jest przyłączona.
+     *
+     * @param timeout czas oczekiwania na odpowiedź w milisekundach
+     * @return true, jeśli drukarka odpowiedziała
+     * @throws IOException w przypadku błędu zapisu do portu
+     */
+    boolean probe(int timeout) throws IOException {
+        receiveBuffer.clear();
+        send("sdev" + TAB);
+        try {
+            receive(timeout);
+        } catch (FiscalPrinterException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
     public void printDailyReport() throws FiscalPrinterException {
         final String cmd = "dailyrep";
         try {
@@ -132,6 +187,18 @@ public class Posnet101Driver {
         }
     }
 
+    /**
+     * Ustawia miejsce zapamiętania parametrów ftrcfg wysłanych do drukarki.
+     * Jeśli przetrwa ono pomiędzy kolejnymi paragonami (np. obiekt związany
+     * z otwartym połączeniem), wysyłane są tylko parametry, które się
+     * zmieniły.
+     *
+     * @param appliedConfiguration parametry ftrcfg obowiązujące w drukarce
+     */
+    public void setAppliedConfiguration(Map<String, String> appliedConfiguration) {
+        this.appliedConfiguration = appliedConfiguration;
+    }
+
     public String getFooterLine1() {
         return footerLine1;
     }
@@ -158,12 +225,9 @@ public class Posnet101Driver {
 
     void printSlip(Slip slip) throws FiscalPrinterException {
         try {
-            send("prncancel" + TAB);
-            receive();
             canPrint();
-            initVatRates();
-            send(cnf(slip.getCashierName(), slip.getCashbox(), slip.getReference()));
-            receive();
+            initVatRates(slip.getSlipLines());
+            cnf(slip.getCashierName(), slip.getCashbox(), slip.getReference());
             send("trinit" + TAB);
             receive();
             for (SaleLine line : slip.getSlipLines()) {
@@ -186,14 +250,71 @@ public class Posnet101Driver {
         }
     }
 
-    void printInvoice(Invoice invoice) throws FiscalPrinterException {
+    /**
+     * Drukuje paragon odczytywany ze strumienia. Stawki VAT są brane z pamięci
+     * podręcznej (albo odczytywane raz, przed otwarciem transakcji), bo
+     * pozycje nie są znane z góry. Pozycja ze stawką, której drukarka nie ma,
+     * albo błąd odczytu strumienia anulują transakcję.
+     */
+    void printSlip(SlipStream slip) throws FiscalPrinterException {
         try {
-            send("prncancel" + TAB);
-            receive();
             canPrint();
-            initVatRates();
-            send(cnf(invoice.getCashierName(), invoice.getCashbox(), invoice.getReference()));
+            initVatRates(Collections.<SaleLine>emptyList());
+            cnf(slip.getCashierName(), slip.getCashbox(), slip.getReference());
+            send("trinit" + TAB);
+            SaleLine line = receiveAndPull(slip);
+            while (line != null) {
+                if (!vatRates.containsKey(line.getTaxRate())) {
+                    cancel();
+                    throw new FiscalPrinterException("Brak stawki " + line.getTaxRate() + " w drukarce");
+                }
+                send(encodeLine(line));
+                line = receiveAndPull(slip);
+            }
+            List<SlipPayment> payments = slip.getPayments();
+            for (SlipPayment sp : payments) {
+                send(encodePayment(sp));
+                receive();
+            }
+            int total = encodePrice(slip.getTotal());
+            String fp = payments.size() > 0 ? "fp" + total + TAB : "";
+            send("trend" + TAB + "to" + total + TAB + fp);
+            receive();
+            send("opendrwr" + TAB);
+            receive();
+        } catch (IOException e) {
+            logger.severe(e.getMessage());
+            throw new FiscalPrinterException(e);
+        }
+    }
+
+    /**
+     * Odbiera odpowiedź na wysłany rozkaz, a w czasie oczekiwania na nią
+     * pobiera ze strumienia kolejną pozycję paragonu.
+     */
+    private SaleLine receiveAndPull(SlipStream slip) throws IOException, FiscalPrinterException {
+        SaleLine next;
+        try {
+            next = slip.nextLine();
+        } catch (IOException | RuntimeException e) {
             receive();
+            cancel();
+            throw new FiscalPrinterException("Błąd odczytu paragonu: " + e.getMessage());
+        }
+        receive();
+        return next;
+    }
+
+    private void cancel() throws IOException, FiscalPrinterException {
+        send("prncancel" + TAB);
+        receive();
+    }
+
+    void printInvoice(Invoice invoice) throws FiscalPrinterException {
+        try {
+            canPrint();
+            initVatRates(invoice.getSlipLines());
+            cnf(invoice.getCashierName(), invoice.getCashbox(), invoice.getReference());
             send("trfvinit" + TAB
                     + "nb" + invoice.getReference() + TAB
                     + "ni" + invoice.getNip() + TAB
@@ -213,7 +334,12 @@ public class Posnet101Driver {
         }
     }
 
-    private void initVatRates() throws FiscalPrinterException, IOException {
+    private void initVatRates(Iterable<SaleLine> lines) throws FiscalPrinterException, IOException {
+        Map<VATRate, Integer> cached = capabilities.getVatSlots(lines);
+        if (cached != null) {
+            vatRates = cached;
+            return;
+        }
         vatRates.clear();
         send("vatget" + TAB);
         Properties rates = decode(receive());
@@ -245,6 +371,7 @@ public class Posnet101Driver {
             }
         }
         logger.fine("Rates assigment: " + vatRates);
+        capabilities.setVatSlots(vatRates);
 
         send("strns" + TAB);
         decode(receive());
@@ -331,24 +458,50 @@ public class Posnet101Driver {
         return sb.toString();
     }
 
-    private String cnf(String nazwaKasjera, String numerKasy, String reference) {
+    /**
+     * Wysyła konfigurację stopki (ftrcfg) - tylko parametry, które różnią się
+     * od wysłanych poprzednio. Jeśli żaden się nie zmienił, rozkaz jest
+     * pomijany.
+     */
+    private void cnf(String nazwaKasjera, String numerKasy, String reference) throws IOException, FiscalPrinterException {
+        Map<String, String> cfg = new LinkedHashMap<>();
+        cfg.put("cc", nazwaKasjera.length() > 32 ? nazwaKasjera.substring(0, 32) : nazwaKasjera);
+        cfg.put("cn", numerKasy.length() > 8 ? numerKasy.substring(0, 8) : numerKasy);
+        cfg.put("sn", reference.length() > 30 ? reference.substring(0, 30) : reference);
+        cfg.put("bc", reference.length() > 16 ? reference.substring(0, 16) : reference);
+        cfg.put("ln", footerLine1 + "\n" + footerLine2 + "\n" + footerLine3);
+        cfg.entrySet().removeIf(e -> e.getValue().equals(appliedConfiguration.get(e.getKey())));
+        if (cfg.isEmpty()) {
+            return;
+        }
+
         StringBuilder sb = new StringBuilder();
         sb.append("ftrcfg").append(TAB);
-        sb.append("cc").append(nazwaKasjera.length() > 32 ? nazwaKasjera.substring(0, 32) : nazwaKasjera).append(TAB);
-        sb.append("cn").append(numerKasy.length() > 8 ? numerKasy.substring(0, 8) : numerKasy).append(TAB);
-        sb.append("sn").append(reference.length() > 30 ? reference.substring(0, 30) : reference).append(TAB);
-        sb.append("bc").append(reference.length() > 16 ? reference.substring(0, 16) : reference).append(TAB);
-        sb.append("ln").append(footerLine1).append("\n").append(footerLine2).append("\n").append(footerLine3).append(TAB);
-        return sb.toString();
+        for (Map.Entry<String, String> e : cfg.entrySet()) {
+            sb.append(e.getKey()).append(e.getValue()).append(TAB);
+        }
+        try {
+            send(sb.toString());
+            receive();
+        } catch (IOException e) {
+            // nie wiadomo, co drukarka przyjęła
+            appliedConfiguration.clear();
+            throw e;
+        }
+        appliedConfiguration.putAll(cfg);
     }
 
+    /**
+     * Sprawdza gotowość drukarki. Zapytania sdev, sprn i scomm (oraz sid, gdy
+     * model drukarki nie jest jeszcze znany) są wysyłane razem, a odpowiedzi
+     * odczytywane po kolei. Niezakończona transakcja jest anulowana
+     * (prncancel) tylko wtedy, gdy drukarka ją zgłasza.
+     */
     private void canPrint() throws FiscalPrinterException, IOException {
-        send("sid" + TAB);
-        Properties p = decode(receive());
-        String prnDesc = "Model: " + p.getProperty("nm") + " relase " + p.getProperty("vr");
+        boolean identify = capabilities.getModel() == null;
+        Properties[] answers = identify ? query("sdev", "sprn", "scomm", "sid") : query("sdev", "sprn", "scomm");
 
-        send("sdev" + TAB);
-        p = decode(receive());
+        Properties p = answers[0];
         if (!p.getProperty("ds").equals("0")) {
             if (p.getProperty("ds").equals("1")) {
                 logger.severe("Drukarka niegotowa - w menu");
@@ -364,8 +517,7 @@ public class Posnet101Driver {
             }
         }
 
-        send("sprn" + TAB);
-        p = decode(receive());
+        p = answers[1];
         if (!p.getProperty("pr").equals("0")) {
             if (p.getProperty("pr").equals("1")) {
                 throw new FiscalPrinterException("Drukarka niegotowa - podniesiona dźwignia");
@@ -399,18 +551,69 @@ public class Posnet101Driver {
             }
         }
 
-        send("scomm" + TAB);
-        p = decode(receive());
-        prnDesc += " SN: " + p.getProperty("nu");
-        logger.fine("Detected printer: " + prnDesc);
+        p = answers[2];
+        String serialNumber = p.getProperty("nu");
+        Properties sid = identify ? answers[3] : null;
+        String knownSerialNumber = capabilities.getSerialNumber();
+        if (!serialNumber.equals(knownSerialNumber)) {
+            // inna drukarka na tym samym porcie albo pierwsza identyfikacja -
+            // zapamiętane parametry (również stawki VAT) są nieaktualne
+            if (knownSerialNumber != null) {
+                logger.info("Zmiana drukarki: SN " + knownSerialNumber + " -> " + serialNumber);
+            }
+            capabilities.invalidate();
+            if (sid == null) {
+                sid = query("sid")[0];
+            }
+        }
+        if (sid != null) {
+            capabilities.setIdentity(serialNumber, sid.getProperty("nm"), sid.getProperty("vr"));
+        }
+        logger.fine("Detected printer: Model: " + capabilities.getModel() + " relase " + capabilities.getFirmware() + " SN: " + serialNumber);
 
         if (!decodeBool(p.getProperty("hr").charAt(0))) {
             throw new FiscalPrinterException("Brak nagłówka");
         }
         if (!p.getProperty("ts").equals("0")) {
-            logger.severe("Niezakończona poprzednia transakcja");
-            throw new FiscalPrinterException("Niezakończona poprzednia transakcja");
+            send("prncancel" + TAB);
+            receive();
+            p = query("scomm")[0];
+            if (!p.getProperty("ts").equals("0")) {
+                logger.severe("Niezakończona poprzednia transakcja");
+                throw new FiscalPrinterException("Niezakończona poprzednia transakcja");
+            }
+        }
+    }
+
+    /**
+     * Wysyła kilka rozkazów jednym zapisem i odczytuje wszystkie odpowiedzi,
+     * także wtedy, gdy któraś z nich zgłasza błąd - w buforze nie zostają
+     * odpowiedzi, które zostałyby wzięte za odpowiedzi na kolejne rozkazy.
+     *
+     * @param commands rozkazy bez parametrów
+     * @return odpowiedzi w kolejności rozkazów
+     */
+    private Properties[] query(String... commands) throws IOException, FiscalPrinterException {
+        frame.reset();
+        for (String command : commands) {
+            appendFrame(command + TAB);
+        }
+        frame.writeTo(outputStream);
+        Properties[] answers = new Properties[commands.length];
+        FiscalPrinterException error = null;
+        for (int i = 0; i < commands.length; i++) {
+            try {
+                answers[i] = decode(receive());
+            } catch (FiscalPrinterException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
         }
+        return answers;
     }
 
     private Properties decode(String answer) {
@@ -425,12 +628,14 @@ public class Posnet101Driver {
     }
 
     private void send(String s) throws IOException {
+        frame.reset();
+        appendFrame(s);
+        frame.writeTo(outputStream);
+    }
+
+    private void appendFrame(String s) throws IOException {
         byte[] seq = s.getBytes("Cp1250");
-        outputStream.write(STX);
-        outputStream.write(seq);
-        outputStream.write('#');
-        outputStream.write(calcCRC(seq).getBytes());
-        outputStream.write(ETX);
+        frame.append(STX).append(seq).append('#').append(calcCRC(seq).getBytes()).append(ETX);
         logger.finest("Tx: " + s);
     }
 
@@ -439,48 +644,39 @@ public class Posnet101Driver {
     }
 
     private String receive(int timeout) throws IOException, FiscalPrinterException {
-        while (--timeout > 0 && ((inputStream.available() > 0) ? (inputStream.read() != STX) : true)) {
-            sleep(1);
-        }
-        if (timeout == 0) {
-            logger.severe("timeout - no STX");
-            throw new IOException("timeout - no STX");
+        long deadline = ReceiveBuffer.deadline(timeout);
+        int b;
+        while ((b = receiveBuffer.readBefore(deadline)) != STX) {
+            if (b < 0) {
+                logger.severe("timeout - no STX");
+                throw new IOException("timeout - no STX");
+            }
         }
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        while (--timeout > 0) {
-            if (inputStream.available() > 0) {
-                int b = inputStream.read();
-                if (b == '#') {
-                    break;
-                }
-                baos.write(b);
+        while ((b = receiveBuffer.readBefore(deadline)) != '#') {
+            if (b < 0) {
+                logger.severe("timeout - no #");
+                throw new IOException("timeout - no #");
             }
-            sleep(1);
+            baos.write(b);
         }
-        if (timeout == 0) {
-            logger.severe("timeout - no #");
-            throw new IOException("timeout - no #");
-        }
-        while (--timeout > 0 && inputStream.available() < 4) {
-            sleep(1);
-        }
-        if (timeout == 0) {
-            logger.severe("timeout - no CRC");
-            throw new IOException("timeout - no CRC");
-        } else {
-            byte[] crc = new byte[4];
-            inputStream.read(crc);
-            if (!calcCRC(baos.toByteArray()).equalsIgnoreCase(new String(crc))) {
-                logger.severe("Bad no CRC");
-                throw new IOException("Bad CRC");
+        byte[] crc = new byte[4];
+        for (int i = 0; i < crc.length; i++) {
+            if ((b = receiveBuffer.readBefore(deadline)) < 0) {
+                logger.severe("timeout - no CRC");
+                throw new IOException("timeout - no CRC");
             }
+            crc[i] = (byte) b;
         }
-        while (--timeout > 0 && ((inputStream.available() > 0) ? (inputStream.read() != ETX) : true)) {
-            sleep(1);
+        if (!calcCRC(baos.toByteArray()).equalsIgnoreCase(new String(crc))) {
+            logger.severe("Bad no CRC");
+            throw new IOException("Bad CRC");
         }
-        if (timeout == 0) {
-            logger.severe("timeout - no ETX");
-            throw new IOException("timeout - no ETX");
+        while ((b = receiveBuffer.readBefore(deadline)) != ETX) {
+            if (b < 0) {
+                logger.severe("timeout - no ETX");
+                throw new IOException("timeout - no ETX");
+            }
         }
         logger.finest("Rx (bin): " + ToString.byteArrayToString(baos.toByteArray()));
         String retVal = baos.toString("Cp1250");
@@ -489,18 +685,11 @@ public class Posnet101Driver {
             String err_no = retVal.substring(retVal.indexOf('?') + 1).trim();
             String cmd = retVal.substring(0, retVal.indexOf('?')).trim();
             logger.severe("Błąd nr " + err_no + " w rozkazie " + cmd + ". " + errors.get(err_no));
-            throw new FiscalPrinterException("Błąd nr " + err_no + " w rozkazie " + cmd + ". " + errors.get(err_no));
+            throw new FiscalPrinterException("Błąd nr " + err_no + " w rozkazie " + cmd + ". " + errors.get(err_no), err_no);
         }
         return retVal;
     }
 
-    private static void sleep(int time) {
-        try {
-            Thread.sleep(time);
-        } catch (InterruptedException ie) {
-            ie.printStackTrace(System.out);
-        }
-    }
     private static final byte[] crc16htab = new byte[]{
         (byte) 0x00, (byte) 0x10, (byte) 0x20, (byte) 0x30, (byte) 0x40, (byte) 0x50, (byte) 0x60, (byte) 0x70,
         (byte) 0x81, (byte) 0x91, (byte) 0xa1, (byte) 0xb1, (byte) 0xc1, (byte) 0xd1, (byte) 0xe1, (byte) 0xf1,
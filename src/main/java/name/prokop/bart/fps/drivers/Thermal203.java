@@ -20,11 +20,13 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import gnu.io.SerialPort;
-import gnu.io.UnsupportedCommOperationException;
 import java.util.Date;
 import java.util.logging.Logger;
 import name.prokop.bart.fps.FiscalPrinter;
 import name.prokop.bart.fps.FiscalPrinterException;
+import name.prokop.bart.fps.PrintResult;
+import name.prokop.bart.fps.comm.FrameBuilder;
+import name.prokop.bart.fps.comm.PortSession;
 import name.prokop.bart.fps.datamodel.Invoice;
 import name.prokop.bart.fps.datamodel.SaleLine;
 import name.prokop.bart.fps.datamodel.Slip;
@@ -32,7 +34,6 @@ import name.prokop.bart.fps.datamodel.SlipExamples;
 import name.prokop.bart.fps.datamodel.SlipPayment;
 import name.prokop.bart.fps.datamodel.VATRate;
 import name.prokop.bart.fps.util.BitsAndBytes;
-import name.prokop.bart.fps.util.PortEnumerator;
 import name.prokop.bart.fps.util.ToString;
 
 /**
@@ -79,9 +80,23 @@ public class Thermal203 implements FiscalPrinter {
      */
     private Thermal203(String comPortName) {
         this.comPortName = comPortName;
+        this.session = PortSession.getSession(comPortName, 9600, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE, SerialPort.FLOWCONTROL_NONE);
+        this.capabilities = DeviceCapabilities.forPort(comPortName);
+        this.session.setStatusProbeIfAbsent(s -> s.probe(0x10, 500));
     }
-    private SerialPort serialPort;
+    private final PortSession session;
+    private final DeviceCapabilities capabilities;
+    /**
+     * Trwa wydruk paczki paragonów - print(Iterable).
+     */
+    private boolean batch;
+    /**
+     * Poprzedni paragon paczki zakończył się poprawnie - drukarka nie wymaga
+     * resetu i ustawienia trybu obsługi błędów.
+     */
+    private boolean prepared;
     private OutputStream outputStream;
+    private final FrameBuilder frame = new FrameBuilder();
     private InputStream inputStream;
 
     /**
@@ -97,20 +112,29 @@ public class Thermal203 implements FiscalPrinter {
         System.out.println("Paragon do druku: " + slip);
         try {
             connect();
-            reset();
-            flushStreams();
-
-            // ustaw pełną, programową obsługę błędów
-            sendLBSERM((byte) 3);
-
-            // jeśli w stanie transakcji, to anuluj istniejącą transakcję
-            if (pflPAR) {
-                sendLBTREXITCAN();
+            boolean ready = prepared;
+            prepared = false;
+            if (!ready) {
+                reset();
+                flushStreams();
+
+                // ustaw pełną, programową obsługę błędów
+                sendLBSERM((byte) 3);
+
+                // jeśli w stanie transakcji, to anuluj istniejącą transakcję
+                if (pflPAR) {
+                    sendLBTREXITCAN();
+                }
             }
 
-            // get all information (status, totals, serial, etc) from printer
-            sendLBFSTRQ((byte) 23);
+            // stawki PTU z pamięci podręcznej, LBFSTRQ tylko gdy ich brak
+            loadPTU(slip.getSlipLines());
             printSlip(slip);
+            // w paczce kolejny paragon nie wymaga ponownego przygotowania drukarki
+            prepared = batch;
+        } catch (FiscalPrinterException e) {
+            capabilities.checkError(e, ThermalResync.VAT_ERRORS);
+            throw e;
         } finally {
             disconnect();
             //Do testów jak się wysyła.
@@ -118,6 +142,52 @@ public class Thermal203 implements FiscalPrinter {
         }
     }
 
+    /**
+     * Drukuje paragony jeden po drugim w jednym połączeniu z drukarką.
+     * Przygotowanie drukarki (reset, tryb obsługi błędów) wykonywane jest
+     * przed pierwszym paragonem i po każdym nieudanym.
+     *
+     * @param slips paragony do wydrukowania
+     * @return wyniki kolejnych paragonów
+     */
+    @Override
+    public synchronized List<PrintResult> print(Iterable<Slip> slips) {
+        batch = true;
+        try {
+            connect();
+        } catch (FiscalPrinterException e) {
+            // błąd zostanie zgłoszony w wyniku każdego paragonu
+        }
+        try {
+            return FiscalPrinter.super.print(slips);
+        } finally {
+            batch = false;
+            prepared = false;
+            disconnect();
+        }
+    }
+
+    /**
+     * Sprawdza stan drukarki rozkazem DLE, bez drukowania. Niezakończona
+     * transakcja (PAR) nie przeszkadza - print() ją anuluje.
+     *
+     * @return true, jeśli drukarka odpowiada, jest on-line, ma papier i nie
+     * zgłasza błędu mechanizmu
+     * @throws FiscalPrinterException gdy nie da się otworzyć portu
+     */
+    @Override
+    public synchronized boolean isReady() throws FiscalPrinterException {
+        try {
+            connect();
+            flushStreams();
+            printerConnected = false;
+            sendDLE();
+            return printerConnected && pflONL && !pflPE && !pflERR;
+        } finally {
+            disconnect();
+        }
+    }
+
     public void print(Invoice invoice) throws FiscalPrinterException {
         throw new FiscalPrinterException(new UnsupportedOperationException("Not supported yet."));
     }
@@ -174,6 +244,8 @@ public class Thermal203 implements FiscalPrinter {
             // wydrukuj raport dobowy
             sendLBDAYREP();
         } finally {
+            // raport dobowy kończy okres, w którym stawki VAT są niezmienne
+            capabilities.invalidate();
             disconnect();
         }
     }
@@ -191,10 +263,8 @@ public class Thermal203 implements FiscalPrinter {
         logger.finest("Suma: " + slip.getTotal());
         sendLBTRXEND1(slip.getTotal(), slip.getCashbox(), slip.getCashierName(), slip.getReference(), preparePayments(slip));
 
-        try {
-            Thread.sleep(250);
-        } catch (InterruptedException ex) {
-        }
+        // zaczekaj na zakończenie wydruku
+        waitUntilIdle(250);
         // otworz szuflade
         sendLBDSP();
     }
@@ -218,10 +288,7 @@ public class Thermal203 implements FiscalPrinter {
 //        logger.finest("Suma: " + slip.getTotal());
 //        sendLBTRXEND1(slip.getTotal(), slip.getCashbox(), slip.getCashierName(), slip.getReference(), preparePayments(slip));
 
-        try {
-            Thread.sleep(1500);
-        } catch (InterruptedException ex) {
-        }
+        waitUntilIdle(1500);
         sendLBDSP();
     }
 
@@ -282,25 +349,13 @@ public class Thermal203 implements FiscalPrinter {
 
     private String readSeq(int timeout) {
         StringBuffer buffer = new StringBuffer();
-        while (timeout-- != 0) {
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-            }
-
-            try {
-                byte[] b;
-                if (inputStream.available() > 0) {
-                    b = new byte[1];
-                    inputStream.read(b, 0, 1);
-                    buffer.append(new String(b));
-                }
-            } catch (IOException e) {
-            }
-
-            if (buffer.indexOf(suffix) != -1) {
-                break;
-            }
+        byte[] seq = null;
+        try {
+            seq = session.getReceiveBuffer().readUntil(suffix.getBytes(), timeout);
+        } catch (IOException e) {
+        }
+        if (seq != null) {
+            buffer.append(new String(seq));
         }
 
         if (buffer.indexOf(prefix) != -1) {
@@ -311,7 +366,7 @@ public class Thermal203 implements FiscalPrinter {
             buffer.delete(buffer.indexOf(suffix), buffer.indexOf(suffix) + 2);
         }
 
-        if (timeout > 0) {
+        if (seq != null) {
             return buffer.toString();
         } else {
             return "";
@@ -319,42 +374,23 @@ public class Thermal203 implements FiscalPrinter {
     }
 
     private void flushStreams() {
-        try {
-            Thread.sleep(200);
-        } catch (InterruptedException e) {
-        }
-        try {
-            while (inputStream.available() > 0) {
-                inputStream.read();
-            }
-        } catch (IOException e) {
-        }
+        session.flushInput();
     }
     private boolean printerConnected;
+    /**
+     * Maksymalny czas oczekiwania na zakończenie wydruku w ms.
+     */
+    private static final long IDLE_TIMEOUT = 10000;
 
-    private void reset() {
-        for (int i = 0; i < 15; i++) {
-            sendCAN();
-            try {
-                Thread.sleep(25);
-            } catch (InterruptedException e) {
-            }
-            sendCAN();
-            try {
-                Thread.sleep(25);
-            } catch (InterruptedException e) {
-            }
-            sendDLE();
-            try {
-                Thread.sleep(25);
-            } catch (InterruptedException e) {
-            }
-            sendENQ();
-            try {
-                Thread.sleep(25);
-            } catch (InterruptedException e) {
-            }
+    private void waitUntilIdle(long fallback) {
+        if (!printerConnected) {
+            return;
         }
+        ThermalResync.waitUntilIdle(session, IDLE_TIMEOUT, fallback, b -> decodeDLE((byte) b), b -> decodeENQ((byte) b));
+    }
+
+    private void reset() {
+        printerConnected = ThermalResync.reset(session, 15, b -> decodeDLE((byte) b), b -> decodeENQ((byte) b)) > 0;
     }
 
     private byte decodeLBERSTS(String seq) {
@@ -378,28 +414,20 @@ public class Thermal203 implements FiscalPrinter {
         }
 
         byte[] seq = ("0$e").getBytes();
-        sendPrefix();
         try {
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTREXITCAN " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTREXITCAN " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
         sendENQ();
 
-        try {
-            while (inputStream.available() > 0) {
-                inputStream.read();
-            }
-        } catch (IOException e) {
-        }
+        session.flushInput();
     }
 
     private void sendLBDSP() throws FiscalPrinterException {
@@ -408,17 +436,14 @@ public class Thermal203 implements FiscalPrinter {
         }
 
         byte[] seq = ("1$d").getBytes();
-        sendPrefix();
         try {
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBDSP " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBDSP " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -434,17 +459,14 @@ public class Thermal203 implements FiscalPrinter {
 
         @SuppressWarnings("deprecation")
         byte[] seq = ("1;" + (now.getYear() - 100) + ";" + (now.getMonth() + 1) + ";" + now.getDate() + "#r").getBytes();
-        sendPrefix();
         try {
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(10000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBDSP " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBDSP " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -459,18 +481,15 @@ public class Thermal203 implements FiscalPrinter {
         }
         // rozpoczecie wydruku
         byte[] seq = ("0;" + p2 + ";" + p3 + "$w").getBytes();
-        sendPrefix();
         try {
             System.out.println("LBTRSHDR_1: " + new String(seq));
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRSHDR " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRSHDR " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -484,18 +503,15 @@ public class Thermal203 implements FiscalPrinter {
         }
 
         byte[] seq = (p1 + ";" + p2 + "$w" + linia + "\r").getBytes();
-        sendPrefix();
         try {
             System.out.println("LBTRSHDR_1: " + new String(seq));
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRSHDR " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRSHDR " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -509,18 +525,15 @@ public class Thermal203 implements FiscalPrinter {
         }
 
         byte[] seq = (p1 + ";254;0$w" + kod + "\r").getBytes();
-        sendPrefix();
         try {
             System.out.println("LBTRSHDR_1: " + new String(seq));
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRSHDR " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRSHDR " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -540,19 +553,16 @@ public class Thermal203 implements FiscalPrinter {
                 footLine3 + "\r" // linia dodatkowa 3
         );
 
-        sendPrefix();
         try {
             logger.finest("LBTRXEND1: " + new String(seq));
             System.out.println("LBTRXEND1: " + new String(seq));
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(10000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRXEND1 " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRXEND1 " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -569,18 +579,15 @@ public class Thermal203 implements FiscalPrinter {
         }
 
         byte[] seq = (pl + "$h").getBytes();
-        sendPrefix();
         try {
             System.out.println("LBTRSHDR: " + new String(seq));
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRSHDR " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRSHDR " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -598,19 +605,16 @@ public class Thermal203 implements FiscalPrinter {
             discount *= 100.0;
         }
         byte[] seq = ToString.string2Mazovia(slipLineNo + ";" + discountType + "$l" + name + "\r" + amount + "\r" + vatRate + "/" + price + "/" + gross + "/" + discount + "/");
-        sendPrefix();
         try {
             logger.finest("LBTRSLN: " + new String(seq));
             System.err.println("LBTRSLN: " + new String(seq));
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(2000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRSLN " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRSLN " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -676,19 +680,16 @@ public class Thermal203 implements FiscalPrinter {
                 "0/" // RESZTA
         );
 
-        sendPrefix();
         try {
             logger.finest("LBTRXEND1: " + new String(seq));
             System.out.println("LBTRXEND1: " + new String(seq));
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(10000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBTRXEND1 " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBTRXEND1 " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -713,17 +714,14 @@ public class Thermal203 implements FiscalPrinter {
         }
 
         byte[] seq = (ps + "#e").getBytes();
-        sendPrefix();
         try {
-            outputStream.write(seq);
-            outputStream.write(calculateCC(seq));
+            sendFrame(seq);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBSERM " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBSERM " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -736,19 +734,17 @@ public class Thermal203 implements FiscalPrinter {
         }
 
         byte[] seq = (ps + "#s").getBytes();
-        sendPrefix();
         try {
-            outputStream.write(seq);
-            //outputStream.write(calculateCC(seq));
+            // rozkaz bez sumy kontrolnej
+            sendFrame(seq, false);
         } catch (IOException e) {
         }
-        sendSuffix();
 
         decodeLBFSTRQ(readSeq(1000));
 
         byte err = decodeLBERSTS(readSeq(1000));
         if (err != 0) {
-            throw new FiscalPrinterException("sendLBFSTRQ " + this + " " + getErrDescription(err));
+            throw new FiscalPrinterException("sendLBFSTRQ " + this + " " + getErrDescription(err), Byte.toString(err));
         }
 
         sendDLE();
@@ -762,6 +758,23 @@ public class Thermal203 implements FiscalPrinter {
     private VATRate ptuF;
     private VATRate ptuG;
 
+    private void loadPTU(Iterable<SaleLine> lines) throws FiscalPrinterException {
+        VATRate[] ptu = capabilities.getVatTable(7, lines);
+        if (ptu == null) {
+            // get all information (status, totals, serial, etc) from printer
+            sendLBFSTRQ((byte) 23);
+            capabilities.setVatTable(ptuA, ptuB, ptuC, ptuD, ptuE, ptuF, ptuG);
+            return;
+        }
+        ptuA = ptu[0];
+        ptuB = ptu[1];
+        ptuC = ptu[2];
+        ptuD = ptu[3];
+        ptuE = ptu[4];
+        ptuF = ptu[5];
+        ptuG = ptu[6];
+    }
+
     private void decodeLBFSTRQ(String seq) {
         seq = seq.substring(seq.indexOf('/') + 1);
         ptuA = decodeLBFSTRQ_PTU(seq.substring(0, seq.indexOf('/')));
@@ -816,17 +829,7 @@ public class Thermal203 implements FiscalPrinter {
     }
 
     private boolean waitForOneByte() throws IOException {
-        int t = 2000;
-        while (t-- != 0) {
-            if (inputStream.available() >= 1) {
-                return true;
-            }
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-            }
-        }
-        return false;
+        return session.getReceiveBuffer().await(1, 2000);
     }
 
     /**
@@ -877,6 +880,7 @@ public class Thermal203 implements FiscalPrinter {
 
         try {
             outputStream.write(0x05);
+            outputStream.flush();
             if (waitForOneByte()) {
                 decodeENQ((byte) inputStream.read());
             }
@@ -887,6 +891,7 @@ public class Thermal203 implements FiscalPrinter {
     private void sendBEL() {
         try {
             outputStream.write(0x07);
+            outputStream.flush();
         } catch (IOException e) {
         }
     }
@@ -894,6 +899,7 @@ public class Thermal203 implements FiscalPrinter {
     private void sendDLE() {
         try {
             outputStream.write(0x10);
+            outputStream.flush();
             if (waitForOneByte()) {
                 printerConnected = true;
                 decodeDLE((byte) inputStream.read());
@@ -907,6 +913,7 @@ public class Thermal203 implements FiscalPrinter {
     private void sendCAN() {
         try {
             outputStream.write(0x18);
+            outputStream.flush();
         } catch (IOException e) {
         }
     }
@@ -938,47 +945,25 @@ public class Thermal203 implements FiscalPrinter {
      * @return
      */
     private void connect() throws FiscalPrinterException {
-        try {
-            serialPort = PortEnumerator.getSerialPort(comPortName);
-        } catch (Exception e) {
-            throw new FiscalPrinterException("Nie można otworzyć portu: " + e.getMessage());
-        }
-
-        try {
-            serialPort.setSerialPortParams(9600,
-                    SerialPort.DATABITS_8,
-                    SerialPort.STOPBITS_1,
-                    SerialPort.PARITY_NONE);
-            serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
-
-            outputStream = serialPort.getOutputStream();
-            inputStream = serialPort.getInputStream();
-        } catch (UnsupportedCommOperationException e) {
-            throw new FiscalPrinterException("Nie można otworzyć portu: UnsupportedCommOperationException: " + e.getMessage());
-        } catch (IOException e) {
-            throw new FiscalPrinterException("Nie można otworzyć portu: IOException: " + e.getMessage());
-        }
+        session.open();
+        outputStream = session.getOutputStream();
+        inputStream = session.getInputStream();
     }
 
     private void disconnect() {
-        if (serialPort!=null)
-            serialPort.close();
+        session.release();
     }
 
-    private void sendPrefix() {
-        try {
-            outputStream.write(0x1B);
-            outputStream.write(0x50);
-        } catch (IOException e) {
-        }
+    private void sendFrame(byte[] seq) throws IOException {
+        sendFrame(seq, true);
     }
 
-    private void sendSuffix() {
-        try {
-            outputStream.write(0x1B);
-            outputStream.write(0x5C);
-        } catch (IOException e) {
+    private void sendFrame(byte[] seq, boolean withCC) throws IOException {
+        frame.reset().append(0x1B).append(0x50).append(seq);
+        if (withCC) {
+            frame.append(calculateCC(seq));
         }
+        frame.append(0x1B).append(0x5C).writeTo(outputStream);
     }
 
     /**
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps.drivers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.logging.Logger;
+import name.prokop.bart.fps.comm.PortSession;
+import name.prokop.bart.fps.comm.ReceiveBuffer;
+
+/**
+ * Synchronizacja łącza i odpytywanie stanu drukarek w protokole Posnet Thermal
+ * (i zgodnych). Zamiast stałej serii CAN/DLE/ENQ wysyłany jest CAN, a następnie DLE i ENQ -
+ * synchronizacja kończy się, gdy obie odpowiedzi są poprawnymi bajtami
+ * statusu. Pełna seria (jak dotychczas) jest wysyłana dopiero wtedy, gdy
+ * szybkie próby zawiodą. Liczba potrzebnych prób jest zapisywana w sesji
+ * portu (PortSession.recordResync()).
+ *
+ * Zakończenie wydruku jest wykrywane na podstawie bajtów statusu DLE/ENQ
+ * (waitUntilIdle()), a nie stałym opóźnieniem.
+ *
+ * @author Bartłomiej Prokop
+ */
+class ThermalResync {
+
+    private static final Logger logger = Logger.getLogger(ThermalResync.class.getName());
+    /**
+     * Numery błędów protokołu dotyczące stawek PTU (11, 18, 39, 80 - patrz
+     * getErrDescription() sterowników).
+     */
+    static final Set<String> VAT_ERRORS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("11", "18", "39", "80")));
+    private static final int CAN = 0x18;
+    private static final int DLE = 0x10;
+    private static final int ENQ = 0x05;
+    private static final int ESC = 0x1B;
+    /**
+     * Liczba szybkich prób przed wysłaniem pełnej serii.
+     */
+    private static final int QUICK_ROUNDS = 2;
+    /**
+     * Czas oczekiwania na bajt statusu w ms.
+     */
+    private static final int REPLY_TIMEOUT = 200;
+    private static final int BURST_PAUSE = 25;
+    /**
+     * Odstęp (ms) pomiędzy kolejnymi zapytaniami o stan w waitUntilIdle().
+     */
+    private static final int POLL_INTERVAL = 50;
+    /**
+     * Minimalny czas (ms) oczekiwania na bajty potwierdzenia CAN i dalsze
+     * bajty odpowiedzi ESC.
+     */
+    private static final int SETTLE_TIME = 20;
+
+    private ThermalResync() {
+    }
+
+    /**
+     * Synchronizuje łącze z drukarką.
+     *
+     * @param session otwarta sesja portu
+     * @param burstRounds liczba powtórzeń CAN,CAN,DLE,ENQ w pełnej serii
+     * @param dle odbiorca odpowiedzi na DLE
+     * @param enq odbiorca odpowiedzi na ENQ
+     * @return liczba prób albo 0, gdy drukarka w ogóle nie odpowiada. Jeśli
+     * drukarka odpowiada, ale nawet po pełnej serii nie są to poprawne bajty
+     * statusu, przekazywane są ostatnie odpowiedzi (jak dotychczas), a
+     * synchronizacja jest zapisywana jako nieudana.
+     */
+    static int reset(PortSession session, int burstRounds, IntConsumer dle, IntConsumer enq) {
+        ReceiveBuffer in = session.getReceiveBuffer();
+        OutputStream out = session.getOutputStream();
+        int rounds = 0;
+        int d = -1;
+        int e = -1;
+        try {
+            for (int attempt = 0; attempt <= QUICK_ROUNDS; attempt++) {
+                if (attempt == QUICK_ROUNDS) {
+                    logger.warning("Brak synchronizacji z drukarką na porcie " + session.getPortName() + " - pełna seria CAN/DLE/ENQ");
+                    burst(out, burstRounds);
+                }
+                rounds++;
+                out.write(CAN);
+                out.flush();
+                drain(in);
+                d = query(in, out, DLE);
+                if (d < 0) {
+                    continue;
+                }
+                e = query(in, out, ENQ);
+                if (isDLEStatus(d) && isENQStatus(e)) {
+                    dle.accept(d);
+                    enq.accept(e);
+                    session.recordResync(rounds, true);
+                    return rounds;
+                }
+            }
+        } catch (IOException ex) {
+            logger.warning("Błąd synchronizacji: " + ex.getMessage());
+        }
+        session.recordResync(rounds, false);
+        if (d < 0) {
+            return 0;
+        }
+        dle.accept(d);
+        if (e >= 0) {
+            enq.accept(e);
+        }
+        return rounds;
+    }
+
+    /**
+     * Czeka, aż drukarka zakończy wykonywanie rozkazów: jest on-line, bez
+     * błędu i braku papieru (DLE), poza trybem transakcji (ENQ). Stan jest
+     * odpytywany co POLL_INTERVAL ms, najdłużej do upływu timeout.
+     *
+     * Jeśli drukarka nie odpowiada poprawnymi bajtami statusu, nie da się
+     * rozpoznać jej stanu - wtedy (jak dotychczas) odczekiwany jest stały czas
+     * fallback.
+     *
+     * @param session otwarta sesja portu
+     * @param timeout maksymalny czas oczekiwania w ms
+     * @param fallback czas oczekiwania w ms, gdy stanu nie da się odczytać
+     * @param dle odbiorca odpowiedzi na DLE
+     * @param enq odbiorca odpowiedzi na ENQ
+     * @return true, jeśli drukarka zgłosiła gotowość
+     */
+    static boolean waitUntilIdle(PortSession session, long timeout, long fallback, IntConsumer dle, IntConsumer enq) {
+        ReceiveBuffer in = session.getReceiveBuffer();
+        OutputStream out = session.getOutputStream();
+        long start = System.nanoTime();
+        long deadline = ReceiveBuffer.deadline(timeout);
+        try {
+            while (true) {
+                session.flushInput();
+                int d = query(in, out, DLE);
+                int e = isDLEStatus(d) ? query(in, out, ENQ) : -1;
+                if (!isDLEStatus(d) || !isENQStatus(e)) {
+                    logger.fine("Nieznany stan drukarki na porcie " + session.getPortName() + " - stałe opóźnienie");
+                    sleep(fallback - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    return false;
+                }
+                dle.accept(d);
+                enq.accept(e);
+                if ((d & 0x07) == 0x04 && (e & 0x02) == 0) {
+                    logger.fine("Drukarka gotowa po " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+                    return true;
+                }
+                if (System.nanoTime() - deadline >= 0) {
+                    logger.warning("Drukarka na porcie " + session.getPortName() + " zajęta po " + timeout + " ms");
+                    return false;
+                }
+                sleep(POLL_INTERVAL);
+            }
+        } catch (IOException ex) {
+            logger.warning("Błąd odczytu stanu: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Odpowiedź na DLE: 0111 0 ONL PE ERR
+     */
+    static boolean isDLEStatus(int b) {
+        return b >= 0 && (b & 0xF8) == 0x70;
+    }
+
+    /**
+     * Odpowiedź na ENQ: 0110 FSK CMD PAR TRF
+     */
+    static boolean isENQStatus(int b) {
+        return b >= 0 && (b & 0xF0) == 0x60;
+    }
+
+    /**
+     * Wysyła zapytanie i zwraca bajt odpowiedzi. Niektóre drukarki (Optimus)
+     * poprzedzają odpowiedź sekwencją ESC - wtedy liczy się ostatni bajt.
+     */
+    private static int query(ReceiveBuffer in, OutputStream out, int request) throws IOException {
+        out.write(request);
+        out.flush();
+        int answer = in.read(REPLY_TIMEOUT);
+        if (answer == ESC) {
+            int b;
+            while ((b = in.read(SETTLE_TIME)) >= 0) {
+                answer = b;
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Odrzuca bajty odebrane po CAN (część drukarek go potwierdza), aż łącze
+     * ucichnie.
+     */
+    private static void drain(ReceiveBuffer in) throws IOException {
+        while (in.read(SETTLE_TIME) >= 0) {
+        }
+    }
+
+    private static void sleep(long time) {
+        if (time <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(time);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void burst(OutputStream out, int burstRounds) throws IOException {
+        for (int i = 0; i < burstRounds; i++) {
+            for (int b : new int[]{CAN, CAN, DLE, ENQ}) {
+                out.write(b);
+                out.flush();
+                try {
+                    Thread.sleep(BURST_PAUSE);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
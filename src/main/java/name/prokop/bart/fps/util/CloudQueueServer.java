@@ -0,0 +1,269 @@
+/*
+ * Copyright 2018 Bartłomiej P. Prokop
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package name.prokop.bart.fps.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lokalny zamiennik serwera kolejek paragonów (fiscal-printer.appspot.com) do
+ * testów i uruchamiania CloudPrint bez dostępu do chmury.
+ *
+ * <pre>
+ * POST /v1/queue/{id}          - dopisuje paragon (JSON w treści) do kolejki
+ * GET  /v1/queue/{id}?wait=30  - pobiera paragon; jeśli kolejka jest pusta,
+ *                                czeka na niego do "wait" sekund, potem 404
+ * POST /v1/queue/{id}/status   - przyjmuje statusy wydruku (tablica JSON)
+ * GET  /v1/queue/?queues={id1},{id2}&amp;wait=30
+ *                              - pobiera pierwszy paragon z którejkolwiek z
+ *                                kolejek; identyfikator kolejki w nagłówku
+ *                                X-Queue-Id
+ * </pre>
+ *
+ * Użycie: java name.prokop.bart.fps.util.CloudQueueServer [port]; następnie
+ * CloudPrint Console COM1 {id} http://localhost:{port}/v1/queue/
+ *
+ * @author Bartłomiej Prokop
+ */
+public class CloudQueueServer implements AutoCloseable {
+
+    private static final String CONTEXT = "/v1/queue/";
+    private static final int MAX_WAIT = 120;
+    private static final String STATUS = "/status";
+    private static final String QUEUE_ID = "X-Queue-Id";
+    private final ConcurrentMap<String, BlockingQueue<byte[]>> queues = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, List<String>> statuses = new ConcurrentHashMap<>();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    // budzi zapytania zbiorcze po dopisaniu paragonu do dowolnej kolejki
+    private final Object arrival = new Object();
+    private int rotation;
+
+    static {
+        // bez tego nagłówki i treść odpowiedzi czekają na opóźnione ACK (~40 ms)
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    /**
+     * Uruchamia serwer.
+     *
+     * @param port port TCP, 0 - dowolny wolny
+     * @throws IOException gdy nie da się otworzyć portu
+     */
+    public CloudQueueServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        // każde oczekujące zapytanie zajmuje wątek
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "CloudQueueServer");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext(CONTEXT, this::handle);
+        server.start();
+    }
+
+    public static void main(String... args) throws Exception {
+        CloudQueueServer server = new CloudQueueServer(args.length > 0 ? Integer.parseInt(args[0]) : 8080);
+        System.out.println("Queue URL: " + server.getQueueUrl());
+        Thread.currentThread().join();
+    }
+
+    /**
+     * @return adres kolejek - do dopisania identyfikator kolejki
+     */
+    public String getQueueUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + CONTEXT;
+    }
+
+    /**
+     * Dopisuje paragon do kolejki, z pominięciem HTTP.
+     *
+     * @param id identyfikator kolejki
+     * @param json paragon
+     */
+    public void enqueue(String id, String json) {
+        add(id, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param id identyfikator kolejki
+     * @return liczba paragonów oczekujących w kolejce
+     */
+    public int size(String id) {
+        return queue(id).size();
+    }
+
+    /**
+     * @param id identyfikator kolejki
+     * @return treść kolejnych zapytań ze statusami wydruku
+     */
+    public List<String> getStatuses(String id) {
+        return statuses(id);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private List<String> statuses(String id) {
+        return statuses.computeIfAbsent(id, k -> new CopyOnWriteArrayList<>());
+    }
+
+    private BlockingQueue<byte[]> queue(String id) {
+        return queues.computeIfAbsent(id, k -> new LinkedBlockingQueue<>());
+    }
+
+    private void add(String id, byte[] slip) {
+        queue(id).add(slip);
+        synchronized (arrival) {
+            arrival.notifyAll();
+        }
+    }
+
+    /**
+     * Pobiera pierwszy paragon z którejkolwiek z podanych kolejek, czekając
+     * na niego najwyżej wait sekund. Kolejki są przeglądane od kolejnej
+     * pozycji przy każdym zapytaniu, żeby żadna nie była faworyzowana.
+     */
+    private void pollMulti(HttpExchange exchange, List<String> ids, int wait) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(wait);
+        String id = null;
+        byte[] slip = null;
+        synchronized (arrival) {
+            int first = rotation++;
+            while (slip == null) {
+                for (int i = 0; i < ids.size() && slip == null; i++) {
+                    id = ids.get(Math.floorMod(first + i, ids.size()));
+                    slip = queue(id).poll();
+                }
+                long left = deadline - System.nanoTime();
+                if (slip == null && left <= 0) {
+                    break;
+                }
+                if (slip == null) {
+                    TimeUnit.NANOSECONDS.timedWait(arrival, left);
+                }
+            }
+        }
+        if (slip != null) {
+            exchange.getResponseHeaders().set(QUEUE_ID, id);
+        }
+        send(exchange, slip != null ? 200 : 404, slip);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String id = exchange.getRequestURI().getPath().substring(CONTEXT.length());
+            List<String> ids = getQueues(exchange.getRequestURI().getRawQuery());
+            if (id.isEmpty() && !ids.isEmpty() && "GET".equals(exchange.getRequestMethod())) {
+                pollMulti(exchange, ids, getWait(exchange.getRequestURI().getQuery()));
+            } else if (id.isEmpty()) {
+                send(exchange, 404, null);
+            } else if (id.endsWith(STATUS) && "POST".equals(exchange.getRequestMethod())) {
+                statuses(id.substring(0, id.length() - STATUS.length())).add(new String(readBody(exchange.getRequestBody()), StandardCharsets.UTF_8));
+                send(exchange, 204, null);
+            } else if ("POST".equals(exchange.getRequestMethod())) {
+                add(id, readBody(exchange.getRequestBody()));
+                send(exchange, 201, null);
+            } else if ("GET".equals(exchange.getRequestMethod())) {
+                byte[] slip = queue(id).poll(getWait(exchange.getRequestURI().getQuery()), TimeUnit.SECONDS);
+                send(exchange, slip != null ? 200 : 404, slip);
+            } else {
+                send(exchange, 405, null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, null);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static int getWait(String query) {
+        if (query != null) {
+            for (String param : query.split("&")) {
+                if (param.startsWith("wait=")) {
+                    try {
+                        return Math.max(0, Math.min(MAX_WAIT, Integer.parseInt(param.substring(5))));
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static List<String> getQueues(String rawQuery) throws IOException {
+        List<String> ids = new ArrayList<>();
+        if (rawQuery != null) {
+            for (String param : rawQuery.split("&")) {
+                if (param.startsWith("queues=")) {
+                    for (String id : param.substring(7).split(",")) {
+                        if (!id.isEmpty()) {
+                            ids.add(URLDecoder.decode(id, "UTF-8"));
+                        }
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            body.write(buf, 0, n);
+        }
+        return body.toByteArray();
+    }
+
+    private static void send(HttpExchange exchange, int code, byte[] body) throws IOException {
+        if (body != null) {
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(code, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } else {
+            exchange.sendResponseHeaders(code, -1);
+        }
+    }
+}
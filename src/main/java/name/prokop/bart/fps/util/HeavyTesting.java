@@ -10,7 +10,11 @@
  */
 package name.prokop.bart.fps.util;
 
+import java.util.ArrayList;
+import java.util.List;
 import name.prokop.bart.fps.FiscalPrinterException;
+import name.prokop.bart.fps.PrintResult;
+import name.prokop.bart.fps.datamodel.Slip;
 import name.prokop.bart.fps.datamodel.SlipExamples;
 import name.prokop.bart.fps.drivers.ElzabMera;
 
@@ -25,14 +29,21 @@ public class HeavyTesting {
         //Posnet101 fp = (Posnet101) Posnet101.getFiscalPrinter("COM1");
         ElzabMera fp = (ElzabMera) ElzabMera.getFiscalPrinter("COM1");
 
+        List<Slip> slips = new ArrayList<>();
         for (int i = 0; i < 50; i++) {
-            try {
-                //fp.print(Slip.getTestSlip());
-                fp.print(SlipExamples.getSampleSlip());
-                fp.openDrawer();
-                System.out.println("Wydruk OK");
-            } catch (FiscalPrinterException e) {
-                e.printStackTrace();
+            //slips.add(Slip.getTestSlip());
+            slips.add(SlipExamples.getSampleSlip());
+        }
+        // jedno połączenie dla wszystkich paragonów, błąd paragonu nie przerywa paczki
+        for (PrintResult result : fp.print(slips)) {
+            System.out.println(result.isSuccess() ? "Wydruk OK" : "Błąd: " + result.getErrorMessage());
+            if (result.isSuccess()) {
+                // test obejmuje też rozkaz otwarcia szuflady po każdym paragonie
+                try {
+                    fp.openDrawer();
+                } catch (FiscalPrinterException e) {
+                    e.printStackTrace();
+                }
             }
         }
     }